@@ -19,7 +19,7 @@ include $(CLEAR_VARS)
 
 LOCAL_MODULE_TAGS := optional
 
-LOCAL_SRC_FILES := $(call all-subdir-java-files) $(call all-renderscript-files-under, src)
+LOCAL_SRC_FILES := $(call all-java-files-under, src) $(call all-renderscript-files-under, src)
 
 LOCAL_PACKAGE_NAME := PhaseBeam
 LOCAL_CERTIFICATE := shared
@@ -27,7 +27,17 @@ LOCAL_RENDERSCRIPT_TARGET_API := 17
 
 LOCAL_PROGUARD_FLAG_FILES := proguard.cfg
 
+# Keep the background mesh uncompressed so it can be memory mapped.
+LOCAL_AAPT_FLAGS := -0 .bin
+
 # Renderscript and sdk version < 21, 32bit only.
 LOCAL_MULTILIB := 32
 
 include $(BUILD_PACKAGE)
+
+# The host benchmarks and the mesh converter are left out of regular builds and
+# only defined on request, e.g.:
+# make PHASEBEAM_HOST_MODULES=true PhaseBeamBenchmarks PhaseBeamMeshConverter
+ifeq ($(PHASEBEAM_HOST_MODULES),true)
+include $(call all-makefiles-under, $(LOCAL_PATH))
+endif
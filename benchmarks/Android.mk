@@ -0,0 +1,47 @@
+#
+# Copyright (C) 2010 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+# JMH benchmarks for the parts of the engine that run without RenderScript.
+# Build with PHASEBEAM_HOST_MODULES=true, see ../Android.mk.
+# Run with: java -cp PhaseBeamBenchmarks.jar org.openjdk.jmh.Main
+# Resource soak test: java -cp PhaseBeamBenchmarks.jar \
+#     com.android.phasebeam.benchmarks.ResourceSoak
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := PhaseBeamBenchmarks
+LOCAL_MODULE_TAGS := optional
+
+PHASEBEAM_JVM_SRC_FILES := \
+    ParticleSimulation.java \
+    BackgroundMesh.java \
+    FrameStats.java \
+    HslRamp.java \
+    ParticleCuller.java \
+    ResourceRegistry.java \
+    EngineResources.java \
+    PhaseBeamRenderer.java \
+    SoftwareRenderer.java
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+    $(addprefix ../src/com/android/phasebeam/, $(PHASEBEAM_JVM_SRC_FILES))
+
+LOCAL_STATIC_JAVA_LIBRARIES := jmh-core
+LOCAL_ANNOTATION_PROCESSORS := jmh-core jmh-generator-annprocess
+LOCAL_ANNOTATION_PROCESSOR_CLASSES := org.openjdk.jmh.generators.BenchmarkProcessor
+
+include $(BUILD_HOST_JAVA_LIBRARY)
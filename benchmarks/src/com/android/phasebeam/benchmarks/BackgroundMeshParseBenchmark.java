@@ -0,0 +1,48 @@
+package com.android.phasebeam.benchmarks;
+
+import com.android.phasebeam.BackgroundMesh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of loading the background mesh, as done by createBackgroundMesh().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BackgroundMeshParseBenchmark {
+    @Param({"28", "1000", "10000", "100000"})
+    public int vertexCount;
+
+    private byte[] mCsv;
+    private ByteBuffer mBinary;
+
+    @Setup
+    public void setUp() throws IOException {
+        mCsv = MeshData.createCsv(vertexCount);
+        byte[] binary = MeshData.createBinary(vertexCount);
+        mBinary = ByteBuffer.allocateDirect(binary.length);
+        mBinary.put(binary);
+    }
+
+    @Benchmark
+    public BackgroundMesh parseCsv() throws IOException {
+        return MeshData.parse(mCsv);
+    }
+
+    @Benchmark
+    public BackgroundMesh readBinary() throws IOException {
+        return MeshData.read(mBinary);
+    }
+}
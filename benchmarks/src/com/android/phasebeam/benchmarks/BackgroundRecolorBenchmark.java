@@ -0,0 +1,47 @@
+package com.android.phasebeam.benchmarks;
+
+import com.android.phasebeam.BackgroundMesh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the vertexColors greyscale pass root() runs on every offset or adjust change.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BackgroundRecolorBenchmark {
+    @Param({"28", "1000", "10000", "100000"})
+    public int vertexCount;
+
+    private BackgroundMesh mMesh;
+    private float[] mColors;
+
+    @Setup
+    public void setUp() throws IOException {
+        mMesh = MeshData.parse(MeshData.createCsv(vertexCount));
+        mColors = new float[vertexCount * 4];
+    }
+
+    @Benchmark
+    public float[] original() {
+        mMesh.computeColors(false, mColors);
+        return mColors;
+    }
+
+    @Benchmark
+    public float[] greyscale() {
+        mMesh.computeColors(true, mColors);
+        return mColors;
+    }
+}
@@ -0,0 +1,40 @@
+package com.android.phasebeam.benchmarks;
+
+import com.android.phasebeam.FrameStats;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Overhead FrameStats adds per recorded frame. Run with -prof gc to check that
+ * recording does not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameStatsBenchmark {
+    private final FrameStats mStats = new FrameStats();
+    private long mSample;
+
+    @Benchmark
+    public void recordFrame() {
+        long sample = (mSample++ & 0xffff);
+        mStats.record(FrameStats.FRAME_INTERVAL, sample);
+        mStats.record(FrameStats.BACKGROUND, sample >> 4);
+        mStats.record(FrameStats.PARTICLES, sample >> 2);
+        mStats.record(FrameStats.DRAW, sample >> 1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        mStats.record(FrameStats.DRAW, 1000);
+    }
+}
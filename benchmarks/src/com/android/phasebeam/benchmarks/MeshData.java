@@ -0,0 +1,49 @@
+package com.android.phasebeam.benchmarks;
+
+import com.android.phasebeam.BackgroundMesh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Synthetic background meshes in the bgmesh formats, sized for the benchmarks.
+ */
+final class MeshData {
+    private MeshData() {
+    }
+
+    static byte[] createCsv(int vertexCount) {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder(vertexCount * 32);
+        for (int i = 0; i < vertexCount; i++) {
+            if (i > 0) {
+                builder.append('\n');
+            }
+            builder.append(random.nextFloat() * 2.5f - 1.25f).append(',')
+                    .append(random.nextFloat() * 2.0f - 1.0f).append(',')
+                    .append(random.nextFloat()).append(',')
+                    .append(random.nextFloat()).append(',')
+                    .append(random.nextFloat());
+        }
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] createBinary(int vertexCount) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        parse(createCsv(vertexCount)).writeBinary(out);
+        return out.toByteArray();
+    }
+
+    static BackgroundMesh parse(byte[] csv) throws IOException {
+        return BackgroundMesh.fromCsv(new ByteArrayInputStream(csv));
+    }
+
+    static BackgroundMesh read(ByteBuffer binary) throws IOException {
+        binary.rewind();
+        return BackgroundMesh.fromBinary(binary);
+    }
+}
@@ -0,0 +1,54 @@
+package com.android.phasebeam.benchmarks;
+
+import com.android.phasebeam.ParticleSimulation;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Scaling of one frame of particle motion with the number of fork-join threads,
+ * compare against ParticleStepBenchmark.step for the serial cost. The counts are
+ * well past the densest setting so that the split is measured where it can pay
+ * off rather than only its overhead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParallelStepBenchmark {
+    @Param({"10000", "30000", "100000"})
+    public int particleCount;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private ForkJoinPool mPool;
+    private ParticleSimulation mSimulation;
+
+    @Setup
+    public void setUp() {
+        mPool = new ForkJoinPool(threads);
+        mSimulation = new ParticleSimulation(particleCount, particleCount, 42);
+        mSimulation.reset();
+        mSimulation.setPool(mPool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    @Benchmark
+    public void step() {
+        mSimulation.step(1.0f);
+    }
+}
@@ -0,0 +1,63 @@
+package com.android.phasebeam.benchmarks;
+
+import com.android.phasebeam.ParticleCuller;
+import com.android.phasebeam.ParticleSimulation;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of building one upload, interleaving the positions with and without
+ * culling them, for a 1080x1920 xxhdpi surface.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParticleCullBenchmark {
+    // Particle_t in particle.rsh: a float3 padded to four floats, then the sprite.
+    private static final int STRIDE = 5;
+    private static final int SPRITE_OFFSET = 4;
+
+    @Param({"28", "1000", "10000", "100000"})
+    public int particleCount;
+
+    private ParticleSimulation mSimulation;
+    private final ParticleCuller mCuller = new ParticleCuller();
+    private float[] mUpload;
+
+    @Setup
+    public void setUp() {
+        mSimulation = new ParticleSimulation(particleCount, particleCount, 42);
+        mSimulation.reset();
+        // Spread the particles over their cycles like a running wallpaper.
+        for (int i = 0; i < 2000; i++) {
+            mSimulation.step(1.0f);
+        }
+        mCuller.setViewport(1080, 1920, 480 / 240.0f);
+        mUpload = new float[particleCount * 2 * STRIDE];
+    }
+
+    @Benchmark
+    public float[] copyAll() {
+        mSimulation.copyBeams(mUpload, STRIDE, 0);
+        mSimulation.copyDots(mUpload, STRIDE, particleCount * STRIDE);
+        return mUpload;
+    }
+
+    @Benchmark
+    public int copyVisible() {
+        copyAll();
+        int beams = mCuller.compact(mUpload, STRIDE, SPRITE_OFFSET, 0, particleCount,
+                1.0f, 0);
+        return beams + mCuller.compact(mUpload, STRIDE, SPRITE_OFFSET, particleCount,
+                particleCount, 0.0f, beams);
+    }
+}
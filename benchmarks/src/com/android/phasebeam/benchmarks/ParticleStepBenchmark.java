@@ -0,0 +1,49 @@
+package com.android.phasebeam.benchmarks;
+
+import com.android.phasebeam.ParticleSimulation;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of one frame of particle motion over dotParticles and beamParticles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParticleStepBenchmark {
+    @Param({"28", "1000", "10000", "100000"})
+    public int particleCount;
+
+    private ParticleSimulation mSimulation;
+
+    @Setup
+    public void setUp() {
+        mSimulation = new ParticleSimulation(particleCount, particleCount, 42);
+        mSimulation.reset();
+    }
+
+    @Benchmark
+    public void step() {
+        mSimulation.step(1.0f);
+    }
+
+    @Benchmark
+    public void stepScrolling() {
+        mSimulation.step(0.25f);
+    }
+
+    @Benchmark
+    public int advancePowerSave() {
+        // One frame at the 5 fps power save rate, 12 fixed steps taken as one.
+        return mSimulation.advance(200.0f);
+    }
+}
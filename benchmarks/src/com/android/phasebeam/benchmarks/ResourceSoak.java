@@ -0,0 +1,164 @@
+package com.android.phasebeam.benchmarks;
+
+import com.android.phasebeam.EngineResources;
+import com.android.phasebeam.ResourceRegistry;
+
+import java.io.PrintWriter;
+
+/**
+ * Soak test of the engine resource lifecycle against a stand-in context.
+ *
+ * Each cycle drives EngineResources, the class PhaseBeamRS delegates every
+ * create, replace and release decision to, through the density, ambient and
+ * resize changes of a session and then tears it down like PhaseBeamRS.uninit().
+ * Only the factory is a stand-in: its objects hold real heap of the size the
+ * RenderScript objects would have, so a leak shows up both in the counts and in
+ * the heap. Every session ends in the state it started in, so it must also end
+ * with the objects it started with. Exits with status 1 if a session grew, if
+ * anything is left alive at the end or if the heap grew.
+ *
+ * Run with: java -cp PhaseBeamBenchmarks.jar
+ *     com.android.phasebeam.benchmarks.ResourceSoak [cycles]
+ */
+public class ResourceSoak {
+    // PhaseBeamRS.PARTICLE_COUNTS.
+    private static final int[] PARTICLE_COUNTS = { 28, 280, 2800 };
+    // Bytes of the script's Particle struct, a float3 padded to 16 bytes and a float.
+    private static final int PARTICLE_SIZE = 20;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final int REPORT_INTERVAL = 500;
+    // Heap growth allowed over the run, for allocator noise.
+    private static final long HEAP_SLACK = 4 * 1024 * 1024;
+
+    static class StandInObject {
+        private byte[] mData;
+
+        StandInObject(int bytes) {
+            mData = new byte[bytes];
+        }
+
+        int getBytes() {
+            return mData.length;
+        }
+    }
+
+    /**
+     * Makes stand-in objects and counts the ones not released yet.
+     */
+    static class StandInFactory implements EngineResources.Factory<StandInObject> {
+        int mLiveCount;
+        StandInObject mBoundParticles;
+        StandInObject mBoundTarget;
+
+        private StandInObject create(int bytes) {
+            mLiveCount++;
+            return new StandInObject(bytes);
+        }
+
+        @Override
+        public void release(StandInObject resource) {
+            if (resource.mData == null) {
+                throw new IllegalStateException("Released twice");
+            }
+            if (resource == mBoundParticles || resource == mBoundTarget) {
+                throw new IllegalStateException("Released while bound");
+            }
+            resource.mData = null;
+            mLiveCount--;
+        }
+
+        @Override
+        public long getBytes(StandInObject resource) {
+            return resource.getBytes();
+        }
+
+        @Override
+        public StandInObject createParticles(int count) {
+            return create(count * 2 * PARTICLE_SIZE);
+        }
+
+        @Override
+        public StandInObject createParticleMesh(StandInObject particles) {
+            return create(0);
+        }
+
+        @Override
+        public void bindParticles(StandInObject particles, StandInObject mesh, int count) {
+            mBoundParticles = particles;
+        }
+
+        @Override
+        public StandInObject createBackgroundTarget(int width, int height) {
+            return create(width * height * 4);
+        }
+
+        @Override
+        public void bindBackgroundTarget(StandInObject target) {
+            mBoundTarget = target;
+        }
+    }
+
+    public static void main(String[] args) {
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        StandInFactory factory = new StandInFactory();
+        PrintWriter out = new PrintWriter(System.out, true);
+
+        long baseline = 0;
+        long heap = 0;
+        int grownSessions = 0;
+        for (int cycle = 1; cycle <= cycles; cycle++) {
+            boolean cacheBackground = cycle % 2 == 0;
+            EngineResources<StandInObject> resources =
+                    new EngineResources<StandInObject>(factory, cacheBackground, WIDTH, HEIGHT);
+            resources.setParticleCount(PARTICLE_COUNTS[0]);
+            resources.setAmbient(false);
+            int startCount = resources.getRegistry().getLiveCount();
+            long startBytes = resources.getRegistry().getLiveBytes();
+            for (int i = 1; i < PARTICLE_COUNTS.length; i++) {
+                resources.setParticleCount(PARTICLE_COUNTS[i]);
+            }
+            resources.setAmbient(true);
+            resources.setSize(HEIGHT, WIDTH);
+            resources.setAmbient(false);
+            resources.setSize(WIDTH, HEIGHT);
+            resources.setParticleCount(PARTICLE_COUNTS[0]);
+            if (cycle <= 2) {
+                resources.getRegistry().dump("  ", out);
+            }
+            if (resources.getRegistry().getLiveCount() != startCount
+                    || resources.getRegistry().getLiveBytes() != startBytes) {
+                grownSessions++;
+            }
+            factory.mBoundParticles = null;
+            factory.mBoundTarget = null;
+            resources.releaseAll();
+
+            if (cycle == 1 || cycle % REPORT_INTERVAL == 0) {
+                heap = getUsedHeap();
+                if (cycle == 1) {
+                    baseline = heap;
+                }
+                out.println("cycle " + cycle + ": grown=" + grownSessions
+                        + " live=" + factory.mLiveCount
+                        + " registered=" + ResourceRegistry.getTotalLiveCount()
+                        + " bytes=" + ResourceRegistry.getTotalLiveBytes()
+                        + " heap=" + heap);
+            }
+        }
+
+        boolean leaked = grownSessions != 0 || factory.mLiveCount != 0
+                || ResourceRegistry.getTotalLiveCount() != 0
+                || ResourceRegistry.getTotalLiveBytes() != 0 || heap > baseline + HEAP_SLACK;
+        out.println(leaked ? "LEAKED" : "OK");
+        System.exit(leaked ? 1 : 0);
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,91 @@
+package com.android.phasebeam.benchmarks;
+
+import com.android.phasebeam.ParticleSimulation;
+import com.android.phasebeam.SoftwareRenderer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Throughput of the software rasterizer on a phone sized framebuffer, and the cost
+ * of rotating it including the first frame at the new size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SoftwareRendererBenchmark {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final float FRAME_MILLIS = 1000.0f / 15;
+
+    @Param({"28", "280", "2800"})
+    public int particleCount;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean recolor;
+
+    private SoftwareRenderer mRenderer;
+    private int[] mFramebuffer;
+    private boolean mLandscape;
+
+    @Setup
+    public void setUp() throws IOException {
+        ParticleSimulation simulation = new ParticleSimulation(particleCount, particleCount, 42);
+        simulation.reset();
+        mRenderer = new SoftwareRenderer(WIDTH, HEIGHT, 3.0f,
+                MeshData.parse(MeshData.createCsv(102)),
+                createSprite(64), createSprite(128), simulation, threads);
+        mRenderer.setAdjust(recolor, 0.3f, 0.8f, 1.0f);
+        mFramebuffer = new int[WIDTH * HEIGHT];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mRenderer.uninit();
+    }
+
+    @Benchmark
+    public int[] drawFrame() {
+        mRenderer.drawFrame(mFramebuffer, FRAME_MILLIS);
+        return mFramebuffer;
+    }
+
+    @Benchmark
+    public int[] rotate() {
+        mLandscape = !mLandscape;
+        if (mLandscape) {
+            mRenderer.resize(HEIGHT, WIDTH);
+        } else {
+            mRenderer.resize(WIDTH, HEIGHT);
+        }
+        mRenderer.drawFrame(mFramebuffer, FRAME_MILLIS);
+        return mFramebuffer;
+    }
+
+    private static SoftwareRenderer.Texture createSprite(int size) {
+        int[] pixels = new int[size * size];
+        float radius = size / 2.0f;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float dx = (x + 0.5f - radius) / radius;
+                float dy = (y + 0.5f - radius) / radius;
+                int value = (int) (255 * Math.max(0.0f, 1.0f - (dx * dx + dy * dy)));
+                pixels[y * size + x] = 0xff000000 | (value << 16) | (value << 8) | value;
+            }
+        }
+        return new SoftwareRenderer.Texture(size, size, pixels);
+    }
+}
@@ -2,7 +2,7 @@ varying lowp vec4 color;
 varying vec3 adjust;
 
 void main() {
-    adjust = ATTRIB_adjust;
+    adjust = UNI_adjust;
     color = ATTRIB_realColor;
-    gl_Position = vec4(ATTRIB_position.x + ATTRIB_offsetX/3.5, ATTRIB_position.y, 0.0, 1.0);
+    gl_Position = vec4(ATTRIB_position.x + UNI_bgOffsetX/3.5, ATTRIB_position.y, 0.0, 1.0);
 }
@@ -0,0 +1,63 @@
+package com.android.phasebeam;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * In-memory channel carrying the recolor settings from PhaseBeamSelector to the
+ * running engines while the user drags a control.
+ *
+ * Updates are coalesced: listeners are told about the latest values at most once
+ * per display frame, however often publish() is called. Persisting the values is
+ * left to the selector. Must only be used from the main thread.
+ */
+class AdjustChannel implements Choreographer.FrameCallback {
+    interface Listener {
+        void onAdjustChanged(boolean enabled, float hue, float saturation, float brightness);
+    }
+
+    private static AdjustChannel sInstance;
+
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    private boolean mEnabled;
+    private float mHue;
+    private float mSaturation;
+    private float mBrightness;
+    private boolean mPending;
+
+    static AdjustChannel getInstance() {
+        if (sInstance == null) {
+            sInstance = new AdjustChannel();
+        }
+        return sInstance;
+    }
+
+    void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    void publish(boolean enabled, float hue, float saturation, float brightness) {
+        mEnabled = enabled;
+        mHue = hue;
+        mSaturation = saturation;
+        mBrightness = brightness;
+        if (!mPending) {
+            mPending = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mPending = false;
+        for (int i = 0; i < mListeners.size(); i++) {
+            mListeners.get(i).onAdjustChanged(mEnabled, mHue, mSaturation, mBrightness);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.android.phasebeam;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * Vertex positions and colors of the background gradient, as plotted in bgmesh.
+ * Every vertex is stored as x, y, red, green, blue.
+ *
+ * The binary form shipped in res/raw is little-endian: the magic "PBMS", an int
+ * version, an int vertex count, then FLOATS_PER_VERTEX floats per vertex.
+ */
+public class BackgroundMesh {
+    public static final int FLOATS_PER_VERTEX = 5;
+
+    private static final int MAGIC = 0x534d4250; // "PBMS" read as little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final float[] mData;
+    private final int mVertexCount;
+
+    BackgroundMesh(float[] data, int vertexCount) {
+        mData = data;
+        mVertexCount = vertexCount;
+    }
+
+    public static BackgroundMesh fromCsv(InputStream inputStream) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+
+        int vertexCount = lines.size();
+        float[] data = new float[vertexCount * FLOATS_PER_VERTEX];
+        for (int i = 0; i < vertexCount; i++) {
+            String[] values = lines.get(i).split(",");
+            for (int j = 0; j < FLOATS_PER_VERTEX; j++) {
+                data[i * FLOATS_PER_VERTEX + j] = Float.parseFloat(values[j]);
+            }
+        }
+        return new BackgroundMesh(data, vertexCount);
+    }
+
+    /**
+     * Reads a mesh in the binary format starting at the buffer's position. The vertex
+     * data is bulk copied out of the buffer, which may be a mapped file.
+     */
+    public static BackgroundMesh fromBinary(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a background mesh");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported background mesh version " + version);
+        }
+        int vertexCount = buffer.getInt();
+        if (vertexCount < 0 || buffer.remaining() < vertexCount * FLOATS_PER_VERTEX * 4) {
+            throw new IOException("Truncated background mesh");
+        }
+        float[] data = new float[vertexCount * FLOATS_PER_VERTEX];
+        buffer.asFloatBuffer().get(data);
+        return new BackgroundMesh(data, vertexCount);
+    }
+
+    public void writeBinary(OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mData.length * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(mVertexCount);
+        buffer.asFloatBuffer().put(mData, 0, mVertexCount * FLOATS_PER_VERTEX);
+        out.write(buffer.array());
+        out.flush();
+    }
+
+    /**
+     * Writes x, y, 0 of every vertex into an interleaved buffer of the given stride,
+     * starting offset floats into each vertex.
+     */
+    public void copyPositions(float[] dst, int stride, int offset) {
+        final float[] data = mData;
+        for (int i = 0, s = 0, d = offset; i < mVertexCount;
+                i++, s += FLOATS_PER_VERTEX, d += stride) {
+            dst[d] = data[s];
+            dst[d + 1] = data[s + 1];
+            dst[d + 2] = 0.0f;
+        }
+    }
+
+    /**
+     * Writes the plotted rgba color of every vertex into an interleaved buffer.
+     */
+    public void copyColors(float[] dst, int stride, int offset) {
+        final float[] data = mData;
+        for (int i = 0, s = 0, d = offset; i < mVertexCount;
+                i++, s += FLOATS_PER_VERTEX, d += stride) {
+            dst[d] = data[s + 2];
+            dst[d + 1] = data[s + 3];
+            dst[d + 2] = data[s + 4];
+            dst[d + 3] = 1.0f;
+        }
+    }
+
+    /**
+     * Java version of the vertexColors loop in root(): writes the color each vertex
+     * is drawn with, as rgba, converted to greyscale when recoloring is enabled.
+     */
+    public void computeColors(boolean greyscale, float[] dst) {
+        final float[] data = mData;
+        for (int i = 0, s = 0, d = 0; i < mVertexCount;
+                i++, s += FLOATS_PER_VERTEX, d += 4) {
+            float red = data[s + 2];
+            float green = data[s + 3];
+            float blue = data[s + 4];
+            if (greyscale) {
+                float grey = 0.3f * red + 0.59f * green + 0.11f * blue;
+                red = grey;
+                green = grey;
+                blue = grey;
+            }
+            dst[d] = red;
+            dst[d + 1] = green;
+            dst[d + 2] = blue;
+            dst[d + 3] = 1.0f;
+        }
+    }
+
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    public float getX(int vertex) {
+        return mData[vertex * FLOATS_PER_VERTEX];
+    }
+
+    public float getY(int vertex) {
+        return mData[vertex * FLOATS_PER_VERTEX + 1];
+    }
+
+    public float getRed(int vertex) {
+        return mData[vertex * FLOATS_PER_VERTEX + 2];
+    }
+
+    public float getGreen(int vertex) {
+        return mData[vertex * FLOATS_PER_VERTEX + 3];
+    }
+
+    public float getBlue(int vertex) {
+        return mData[vertex * FLOATS_PER_VERTEX + 4];
+    }
+}
@@ -0,0 +1,145 @@
+package com.android.phasebeam;
+
+/**
+ * Decides which objects an engine creates, replaces and releases over its life,
+ * with the objects themselves made by a Factory and owned by a ResourceRegistry.
+ *
+ * Most objects are created once in PhaseBeamRS.init() and only added here. The
+ * particle allocation and mesh are replaced when the particle count changes, and
+ * the background target whenever the size or ambient mode changes, or is dropped
+ * once nothing caches the background. PhaseBeamRS drives this with RenderScript
+ * objects, ResourceSoak with stand-ins to check nothing is left behind.
+ */
+public class EngineResources<T> {
+    public interface Factory<T> extends ResourceRegistry.Releaser<T> {
+        /**
+         * Returns about how many bytes resource holds, 0 for objects like programs
+         * that do not own buffers.
+         */
+        long getBytes(T resource);
+
+        /**
+         * Creates the allocation for count beams followed by count dots.
+         */
+        T createParticles(int count);
+
+        T createParticleMesh(T particles);
+
+        /**
+         * Makes the script draw the new particles; the previous ones are released
+         * right after this returns.
+         */
+        void bindParticles(T particles, T mesh, int count);
+
+        T createBackgroundTarget(int width, int height);
+
+        /**
+         * Makes the script cache its background in target, or not at all if null.
+         * The previous target is released right after this returns.
+         */
+        void bindBackgroundTarget(T target);
+    }
+
+    private final Factory<T> mFactory;
+    private final ResourceRegistry<T> mRegistry;
+    private final boolean mCacheBackground;
+
+    private T mParticles;
+    private T mParticleMesh;
+    private int mParticleCount;
+    private T mBackgroundTarget;
+    private boolean mAmbient;
+    private int mWidth;
+    private int mHeight;
+
+    public EngineResources(Factory<T> factory, boolean cacheBackground, int width,
+            int height) {
+        mFactory = factory;
+        mRegistry = new ResourceRegistry<T>(factory);
+        mCacheBackground = cacheBackground;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Takes ownership of an object created for the engine and returns it.
+     */
+    public <R extends T> R add(R resource) {
+        return mRegistry.add(resource, mFactory.getBytes(resource));
+    }
+
+    public void setParticleCount(int count) {
+        if (count == mParticleCount) {
+            return;
+        }
+        T oldParticles = mParticles;
+        T oldParticleMesh = mParticleMesh;
+        mParticles = add(mFactory.createParticles(count));
+        mParticleMesh = add(mFactory.createParticleMesh(mParticles));
+        mParticleCount = count;
+        mFactory.bindParticles(mParticles, mParticleMesh, count);
+        release(oldParticleMesh);
+        release(oldParticles);
+    }
+
+    public void setAmbient(boolean ambient) {
+        mAmbient = ambient;
+        updateBackgroundTarget();
+    }
+
+    public void setSize(int width, int height) {
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        if (mBackgroundTarget != null) {
+            updateBackgroundTarget();
+        }
+    }
+
+    /**
+     * Creates, replaces or drops the background target to match the size and mode,
+     * at half resolution in ambient mode; the background is smooth gradients, so
+     * linear upscaling does not show.
+     */
+    private void updateBackgroundTarget() {
+        T oldTarget = mBackgroundTarget;
+        if (mAmbient || mCacheBackground) {
+            int scale = mAmbient ? 2 : 1;
+            mBackgroundTarget = add(mFactory.createBackgroundTarget(
+                    Math.max(1, mWidth / scale), Math.max(1, mHeight / scale)));
+        } else {
+            mBackgroundTarget = null;
+        }
+        if (oldTarget != null || mBackgroundTarget != null) {
+            mFactory.bindBackgroundTarget(mBackgroundTarget);
+        }
+        release(oldTarget);
+    }
+
+    private void release(T resource) {
+        if (resource != null) {
+            mRegistry.release(resource);
+        }
+    }
+
+    /**
+     * Releases everything, the engine must not draw anymore.
+     */
+    public void releaseAll() {
+        mRegistry.releaseAll();
+        mParticles = null;
+        mParticleMesh = null;
+        mParticleCount = 0;
+        mBackgroundTarget = null;
+    }
+
+    public int getParticleCount() {
+        return mParticleCount;
+    }
+
+    public ResourceRegistry<T> getRegistry() {
+        return mRegistry;
+    }
+}
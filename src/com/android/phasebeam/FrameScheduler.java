@@ -0,0 +1,181 @@
+package com.android.phasebeam;
+
+/**
+ * Decides how long the script waits between frames.
+ *
+ * The engine reports visibility, offset changes and power save mode; a pluggable
+ * Policy turns that into the delay root() returns, both for regular frames and for
+ * frames drawn while the launcher is scrolling.
+ */
+public class FrameScheduler {
+    public interface Policy {
+        /**
+         * Returns the delay in milliseconds between regular frames, idleMillis being
+         * the time since the offset last changed or the wallpaper became visible.
+         */
+        int getFrameDelay(long idleMillis, boolean powerSave);
+
+        /**
+         * Returns the delay in milliseconds between frames while the offset changes.
+         */
+        int getScrollFrameDelay(boolean powerSave);
+
+        /**
+         * Returns in how many milliseconds getFrameDelay() may return a different
+         * value if nothing else happens, or -1 if it will not.
+         */
+        long getNextChange(long idleMillis);
+    }
+
+    public interface Callback {
+        void onFrameDelayChanged(int frameDelay, int scrollFrameDelay);
+    }
+
+    /**
+     * Runs at a constant rate, the original behavior of the script.
+     */
+    public static class FixedRatePolicy implements Policy {
+        private final int mFrameDelay;
+        private final int mScrollFrameDelay;
+
+        public FixedRatePolicy(int fps, int scrollFps) {
+            mFrameDelay = 1000 / fps;
+            mScrollFrameDelay = 1000 / scrollFps;
+        }
+
+        @Override
+        public int getFrameDelay(long idleMillis, boolean powerSave) {
+            return mFrameDelay;
+        }
+
+        @Override
+        public int getScrollFrameDelay(boolean powerSave) {
+            return mScrollFrameDelay;
+        }
+
+        @Override
+        public long getNextChange(long idleMillis) {
+            return -1;
+        }
+    }
+
+    /**
+     * Caps the frame rate of another policy while power save mode is on.
+     */
+    public static class BatterySaverPolicy implements Policy {
+        private final Policy mPolicy;
+        private final int mFrameDelay;
+        private final int mScrollFrameDelay;
+
+        public BatterySaverPolicy(Policy policy, int fps, int scrollFps) {
+            mPolicy = policy;
+            mFrameDelay = 1000 / fps;
+            mScrollFrameDelay = 1000 / scrollFps;
+        }
+
+        @Override
+        public int getFrameDelay(long idleMillis, boolean powerSave) {
+            int frameDelay = mPolicy.getFrameDelay(idleMillis, powerSave);
+            return powerSave ? Math.max(frameDelay, mFrameDelay) : frameDelay;
+        }
+
+        @Override
+        public int getScrollFrameDelay(boolean powerSave) {
+            int frameDelay = mPolicy.getScrollFrameDelay(powerSave);
+            return powerSave ? Math.max(frameDelay, mScrollFrameDelay) : frameDelay;
+        }
+
+        @Override
+        public long getNextChange(long idleMillis) {
+            return mPolicy.getNextChange(idleMillis);
+        }
+    }
+
+    /**
+     * Drops to a lower frame rate once the offset has not changed for a while.
+     */
+    public static class IdleDecayPolicy implements Policy {
+        private final Policy mPolicy;
+        private final long mTimeout;
+        private final int mFrameDelay;
+
+        public IdleDecayPolicy(Policy policy, long timeout, int idleFps) {
+            mPolicy = policy;
+            mTimeout = timeout;
+            mFrameDelay = 1000 / idleFps;
+        }
+
+        @Override
+        public int getFrameDelay(long idleMillis, boolean powerSave) {
+            int frameDelay = mPolicy.getFrameDelay(idleMillis, powerSave);
+            return idleMillis >= mTimeout ? Math.max(frameDelay, mFrameDelay) : frameDelay;
+        }
+
+        @Override
+        public int getScrollFrameDelay(boolean powerSave) {
+            return mPolicy.getScrollFrameDelay(powerSave);
+        }
+
+        @Override
+        public long getNextChange(long idleMillis) {
+            if (idleMillis < mTimeout) {
+                return mTimeout - idleMillis;
+            }
+            return mPolicy.getNextChange(idleMillis);
+        }
+    }
+
+    private final Policy mPolicy;
+    private final Callback mCallback;
+
+    private long mLastActivity;
+    private boolean mPowerSave;
+    private boolean mVisible;
+    private int mFrameDelay = -1;
+    private int mScrollFrameDelay = -1;
+
+    public FrameScheduler(Policy policy, Callback callback) {
+        mPolicy = policy;
+        mCallback = callback;
+    }
+
+    public void onVisibilityChanged(boolean visible, long now) {
+        mVisible = visible;
+        if (visible) {
+            mLastActivity = now;
+        }
+    }
+
+    public void onOffsetChanged(long now) {
+        mLastActivity = now;
+    }
+
+    public void setPowerSaveMode(boolean powerSave) {
+        mPowerSave = powerSave;
+    }
+
+    /**
+     * Recomputes the frame delays, reporting them to the callback if they changed.
+     * Returns in how many milliseconds update() should be called again, or -1 if it
+     * only needs to be called after the next event.
+     */
+    public long update(long now) {
+        long idle = now - mLastActivity;
+        int frameDelay = mPolicy.getFrameDelay(idle, mPowerSave);
+        int scrollFrameDelay = mPolicy.getScrollFrameDelay(mPowerSave);
+        if (frameDelay != mFrameDelay || scrollFrameDelay != mScrollFrameDelay) {
+            mFrameDelay = frameDelay;
+            mScrollFrameDelay = scrollFrameDelay;
+            mCallback.onFrameDelayChanged(frameDelay, scrollFrameDelay);
+        }
+        return mVisible ? mPolicy.getNextChange(idle) : -1;
+    }
+
+    public int getFrameDelay() {
+        return mFrameDelay;
+    }
+
+    public int getScrollFrameDelay() {
+        return mScrollFrameDelay;
+    }
+}
@@ -0,0 +1,149 @@
+package com.android.phasebeam;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free recorder of frame and lifecycle timings, in microseconds.
+ *
+ * Each channel keeps a cumulative log2 histogram and a ring of the most recent
+ * samples used for percentiles. record() only touches atomic arrays so it can be
+ * called from any thread on the per-frame path without allocating.
+ */
+public class FrameStats {
+    public static final int FRAME_INTERVAL = 0;
+    public static final int BACKGROUND = 1;
+    public static final int PARTICLES = 2;
+    public static final int DRAW = 3;
+    public static final int INIT = 4;
+    public static final int TEARDOWN = 5;
+    public static final int RESUME = 6;
+    public static final int RESIZE = 7;
+    public static final int CHANNEL_COUNT = 8;
+
+    private static final String[] CHANNEL_NAMES = {
+        "frame_interval", "background", "particles", "draw", "init", "teardown", "resume",
+        "resize"
+    };
+
+    private static final int BUCKET_COUNT = 32;
+    private static final int RING_SIZE = 256;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(CHANNEL_COUNT * BUCKET_COUNT);
+    private final AtomicLongArray mCounts = new AtomicLongArray(CHANNEL_COUNT);
+    private final AtomicLongArray mSums = new AtomicLongArray(CHANNEL_COUNT);
+    private final AtomicLongArray mMax = new AtomicLongArray(CHANNEL_COUNT);
+    private final AtomicIntegerArray mRing = new AtomicIntegerArray(CHANNEL_COUNT * RING_SIZE);
+
+    public static String getChannelName(int channel) {
+        return CHANNEL_NAMES[channel];
+    }
+
+    public void record(int channel, long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        mBuckets.incrementAndGet(channel * BUCKET_COUNT + bucket);
+        long index = mCounts.getAndIncrement(channel);
+        mRing.set(channel * RING_SIZE + (int) (index % RING_SIZE),
+                (int) Math.min(micros, Integer.MAX_VALUE));
+        mSums.addAndGet(channel, micros);
+        long max;
+        while (micros > (max = mMax.get(channel))) {
+            if (mMax.compareAndSet(channel, max, micros)) {
+                break;
+            }
+        }
+    }
+
+    public void recordSince(int channel, long startNanos) {
+        record(channel, (System.nanoTime() - startNanos) / 1000);
+    }
+
+    public long getCount(int channel) {
+        return mCounts.get(channel);
+    }
+
+    public long getMean(int channel) {
+        long count = mCounts.get(channel);
+        return count > 0 ? mSums.get(channel) / count : 0;
+    }
+
+    public long getMax(int channel) {
+        return mMax.get(channel);
+    }
+
+    /**
+     * Returns the given percentile, 0 to 100, over the most recent samples.
+     */
+    public long getPercentile(int channel, int percentile) {
+        int[] samples = getRecentSamples(channel);
+        if (samples.length == 0) {
+            return 0;
+        }
+        Arrays.sort(samples);
+        int index = (samples.length - 1) * percentile / 100;
+        return samples[index];
+    }
+
+    private int[] getRecentSamples(int channel) {
+        int count = (int) Math.min(mCounts.get(channel), RING_SIZE);
+        int[] samples = new int[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = mRing.get(channel * RING_SIZE + i);
+        }
+        return samples;
+    }
+
+    public void reset() {
+        for (int i = 0; i < mBuckets.length(); i++) {
+            mBuckets.set(i, 0);
+        }
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            mCounts.set(i, 0);
+            mSums.set(i, 0);
+            mMax.set(i, 0);
+        }
+    }
+
+    public void dump(String prefix, PrintWriter out) {
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            long count = getCount(channel);
+            out.print(prefix);
+            out.print(CHANNEL_NAMES[channel]);
+            out.print(": count=");
+            out.print(count);
+            if (count == 0) {
+                out.println();
+                continue;
+            }
+            out.print(" mean=");
+            out.print(getMean(channel));
+            out.print("us p50=");
+            out.print(getPercentile(channel, 50));
+            out.print("us p90=");
+            out.print(getPercentile(channel, 90));
+            out.print("us p99=");
+            out.print(getPercentile(channel, 99));
+            out.print("us max=");
+            out.print(getMax(channel));
+            out.println("us");
+
+            out.print(prefix);
+            out.print("  histogram:");
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                long bucketCount = mBuckets.get(channel * BUCKET_COUNT + bucket);
+                if (bucketCount > 0) {
+                    out.print(" <");
+                    out.print(1L << bucket);
+                    out.print("us=");
+                    out.print(bucketCount);
+                }
+            }
+            out.println();
+        }
+    }
+}
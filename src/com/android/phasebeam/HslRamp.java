@@ -0,0 +1,61 @@
+package com.android.phasebeam;
+
+/**
+ * Bakes the recolor done by bg_fs and dot_fs into a ramp of SIZE colors.
+ *
+ * With recoloring enabled every input is greyscale and adjust is constant until the
+ * user changes a setting, so each grey level maps to exactly one color. The shaders
+ * look that color up instead of evaluating hsl2rgb per fragment. Entry i holds the
+ * color for grey i / (SIZE - 1); sample it at grey * (SIZE - 1) / SIZE + 0.5 / SIZE
+ * to hit texel centers.
+ */
+public class HslRamp {
+    public static final int SIZE = 256;
+
+    private HslRamp() {
+    }
+
+    /**
+     * Fills rgb with SIZE * 3 floats in [0, 1], the colors for every grey level.
+     */
+    public static void fill(float hue, float saturation, float brightness, float[] rgb) {
+        float[] color = new float[3];
+        for (int i = 0; i < SIZE; i++) {
+            float grey = i / (float) (SIZE - 1);
+            hsl2rgb(hue, saturation, brightness * grey, color);
+            rgb[i * 3] = clamp01(color[0]);
+            rgb[i * 3 + 1] = clamp01(color[1]);
+            rgb[i * 3 + 2] = clamp01(color[2]);
+        }
+    }
+
+    /**
+     * Fills rgba with SIZE * 4 bytes, the ramp as an RGBA_8888 texture row.
+     */
+    public static void fill(float hue, float saturation, float brightness, byte[] rgba) {
+        float[] rgb = new float[SIZE * 3];
+        fill(hue, saturation, brightness, rgb);
+        for (int i = 0; i < SIZE; i++) {
+            rgba[i * 4] = (byte) Math.round(rgb[i * 3] * 255.0f);
+            rgba[i * 4 + 1] = (byte) Math.round(rgb[i * 3 + 1] * 255.0f);
+            rgba[i * 4 + 2] = (byte) Math.round(rgb[i * 3 + 2] * 255.0f);
+            rgba[i * 4 + 3] = (byte) 0xff;
+        }
+    }
+
+    // inspired by http://www.chilliant.com/rgb2hsv.html
+    static void hsl2rgb(float h, float s, float l, float[] rgb) {
+        // each line has the form abs(6 * hue - K1) * K2 + C
+        float r = clamp01(Math.abs(6.0f * (h - 0.5f)) - 1.0f);
+        float g = clamp01(-Math.abs(6.0f * (h - 1.0f / 3.0f)) + 2.0f);
+        float b = clamp01(-Math.abs(6.0f * (h - 2.0f / 3.0f)) + 2.0f);
+        float chroma = (1.0f - Math.abs(2.0f * l - 1.0f)) * s;
+        rgb[0] = (r - 0.5f) * chroma + l;
+        rgb[1] = (g - 0.5f) * chroma + l;
+        rgb[2] = (b - 0.5f) * chroma + l;
+    }
+
+    static float clamp01(float value) {
+        return value < 0.0f ? 0.0f : (value > 1.0f ? 1.0f : value);
+    }
+}
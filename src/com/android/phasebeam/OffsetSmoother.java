@@ -0,0 +1,117 @@
+package com.android.phasebeam;
+
+/**
+ * Turns the launcher's offset events into one offset per rendered frame.
+ *
+ * Incoming offsets are timestamped and their velocity is used to extrapolate the
+ * target to the frame time, so the parallax keeps moving between events that
+ * arrive slower than we render. The rendered offset follows that target with a
+ * critically damped spring, which does not oscillate and settles on its own once
+ * the launcher stops reporting.
+ */
+public class OffsetSmoother {
+    // Spring stiffness in rad/s, the offset is within 1% of a step after ~130 ms.
+    private static final float OMEGA = 50.0f;
+    // Never extrapolate further than this past the last event.
+    private static final long MAX_PREDICTION_NANOS = 16000000L;
+    // Events further apart than this do not give a usable velocity.
+    private static final long MAX_SAMPLE_GAP_NANOS = 100000000L;
+    private static final float SETTLE_DISTANCE = 0.0001f;
+    private static final float SETTLE_VELOCITY = 0.001f;
+
+    private float mTarget;
+    private long mTargetTime;
+    private float mTargetVelocity;
+    private long mTargetGap = MAX_SAMPLE_GAP_NANOS;
+
+    private float mValue;
+    private float mVelocity;
+    private long mFrameTime;
+    private boolean mSettled = true;
+
+    public OffsetSmoother(float value) {
+        mTarget = value;
+        mValue = value;
+    }
+
+    /**
+     * Records an offset reported at timeNanos, in the System.nanoTime() base.
+     */
+    public void setTarget(float target, long timeNanos) {
+        long gap = timeNanos - mTargetTime;
+        if (mTargetTime != 0 && gap > 0 && gap < MAX_SAMPLE_GAP_NANOS) {
+            mTargetVelocity = (target - mTarget) * 1e9f / gap;
+            mTargetGap = gap;
+        } else {
+            mTargetVelocity = 0.0f;
+            mTargetGap = MAX_SAMPLE_GAP_NANOS;
+        }
+        mTarget = target;
+        mTargetTime = timeNanos;
+        if (mSettled) {
+            mSettled = false;
+            mFrameTime = timeNanos;
+        }
+    }
+
+    /**
+     * Jumps to value without animating, e.g. after the renderer was re-created.
+     */
+    public void reset(float value) {
+        mTarget = value;
+        mTargetVelocity = 0.0f;
+        mValue = value;
+        mVelocity = 0.0f;
+        mSettled = true;
+    }
+
+    /**
+     * Advances the spring to frameTimeNanos and returns the offset to render.
+     */
+    public float update(long frameTimeNanos) {
+        if (mSettled) {
+            return mValue;
+        }
+        float dt = Math.max(0, frameTimeNanos - mFrameTime) / 1e9f;
+        mFrameTime = frameTimeNanos;
+
+        // The launcher stopped once it missed about two of its own event intervals.
+        long sinceTarget = frameTimeNanos - mTargetTime;
+        if (sinceTarget > Math.min(2 * mTargetGap, MAX_SAMPLE_GAP_NANOS)) {
+            mTargetVelocity = 0.0f;
+        }
+        float target = mTarget;
+        if (sinceTarget > 0 && mTargetVelocity != 0.0f) {
+            target += mTargetVelocity * Math.min(sinceTarget, MAX_PREDICTION_NANOS) / 1e9f;
+            target = Math.max(0.0f, Math.min(1.0f, target));
+        }
+
+        // Closed form of x'' = -2 w x' - w^2 (x - target), exact for any dt.
+        float distance = mValue - target;
+        float decay = (float) Math.exp(-OMEGA * dt);
+        float slope = mVelocity + OMEGA * distance;
+        distance = (distance + slope * dt) * decay;
+        mVelocity = (mVelocity - OMEGA * slope * dt) * decay;
+        mValue = target + distance;
+
+        if (mTargetVelocity == 0.0f && Math.abs(distance) < SETTLE_DISTANCE
+                && Math.abs(mVelocity) < SETTLE_VELOCITY) {
+            mValue = mTarget;
+            mVelocity = 0.0f;
+            mSettled = true;
+        }
+        return mValue;
+    }
+
+    public boolean isSettled() {
+        return mSettled;
+    }
+
+    public float getTarget() {
+        return mTarget;
+    }
+
+    public float getValue() {
+        return mValue;
+    }
+}
@@ -0,0 +1,60 @@
+package com.android.phasebeam;
+
+/**
+ * Drops particles that cannot be seen from an interleaved upload buffer before it
+ * is copied to the script, so only visible particles are drawn.
+ *
+ * dot_vs places each point at its x, y shifted left by the parallax offset times
+ * z * 7 / 100, and draws it z * 7 * scaleSize pixels wide. A particle is kept if
+ * any part of its sprite is on screen for some offset between 0 and 2, which is
+ * the whole range the launcher can scroll to. The result therefore does not need
+ * to be recomputed while scrolling.
+ */
+public class ParticleCuller {
+    // Keep in sync with dot_vs.
+    private static final float POINT_SIZE = 7.0f;
+    private static final float MAX_PARALLAX = 2.0f * 7.0f / 100.0f;
+
+    private float mHalfWidthPerZ;
+    private float mHalfHeightPerZ;
+
+    /**
+     * Sets the size of the surface in pixels and the scaleSize dot_vs uses.
+     */
+    public void setViewport(int width, int height, float scaleSize) {
+        // Half a point, in normalized device coordinates, per unit of z.
+        mHalfWidthPerZ = POINT_SIZE * scaleSize / width;
+        mHalfHeightPerZ = POINT_SIZE * scaleSize / height;
+    }
+
+    /**
+     * Moves the visible ones of count particles starting at index from down to
+     * consecutive slots starting at index to, which must not be after from, and
+     * sets their sprite field. Returns the number of particles kept.
+     */
+    public int compact(float[] data, int stride, int spriteOffset, int from, int count,
+            float sprite, int to) {
+        final float halfWidthPerZ = mHalfWidthPerZ;
+        final float halfHeightPerZ = mHalfHeightPerZ;
+        int src = from * stride;
+        int dst = to * stride;
+        int kept = 0;
+        for (int i = 0; i < count; i++, src += stride) {
+            float x = data[src];
+            float y = data[src + 1];
+            float z = data[src + 2];
+            float halfWidth = halfWidthPerZ * z;
+            if (x + halfWidth < -1.0f || x - MAX_PARALLAX * z - halfWidth > 1.0f
+                    || Math.abs(y) - halfHeightPerZ * z > 1.0f) {
+                continue;
+            }
+            data[dst] = x;
+            data[dst + 1] = y;
+            data[dst + 2] = z;
+            data[dst + spriteOffset] = sprite;
+            dst += stride;
+            kept++;
+        }
+        return kept;
+    }
+}
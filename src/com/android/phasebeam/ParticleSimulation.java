@@ -0,0 +1,408 @@
+package com.android.phasebeam;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Plain Java model of the beam and dot motion driven by phasebeam.rs.
+ *
+ * Positions live in struct-of-arrays buffers so the simulation can be run,
+ * benchmarked and compared against the script on a regular JVM. The layout and
+ * update rules mirror positionParticles() and root() step for step; keep both
+ * sides in sync when changing either one.
+ *
+ * Which copy of the rules moves the particles on screen depends on
+ * shared_simulation in config.xml. When it is set, the default, engines share a
+ * copy of this class through SharedSimulation. A single started engine still has
+ * root() step it with the particles.rs kernel; while the wallpaper and its preview
+ * run at once, SharedSimulation steps this class once for both and uploads the
+ * positions, and root() leaves them alone. With it cleared every engine's root()
+ * steps its own particles.
+ *
+ * Like particles.rs, step() can split the particles across threads, see
+ * setPool(); SharedSimulation does so for the densest setting. Respawn positions
+ * come from a hash of the particle index and step count rather than a shared
+ * Random, so the result does not depend on how the work was split.
+ *
+ * Far particles, with z below FAR_Z, move around a tenth of a pixel per step.
+ * reset() puts them after the near ones of their kind and step() only moves them
+ * once they are owed FAR_SPEEDBUMP, which is the distance of one frame of the
+ * original animation; particles.rs does the same with farZ and farStepSpeedbump.
+ * Near particles come first so that the prefix ambient mode draws shows the
+ * prominent ones rather than the faint far beams. The script simulates from the
+ * layout reset() writes, so it keeps that order too.
+ */
+public class ParticleSimulation {
+    static final float ZX_PARTICLE_SPEED = 0.0000780f;
+    static final float ZX_BEAM_SPEED = 0.00005f;
+    static final float YZ_PARTICLE_SPEED = 0.00011f;
+    static final float YZ_BEAM_SPEED = 0.000080f;
+
+    // advance() moves in fixed steps of STEP_MILLIS, each worth STEP_SPEEDBUMP of
+    // step(); four of them make up one 66 ms frame of the original animation.
+    public static final float STEP_MILLIS = 16.5f;
+    static final float STEP_SPEEDBUMP = 0.25f;
+    // Longer gaps, e.g. after being stopped, are not caught up on.
+    public static final int MAX_STEPS = 16;
+
+    // The depth layers were laid out for this many particles of each kind; larger
+    // scenes keep the same proportions.
+    private static final int LAYOUT_SLOTS = 28;
+
+    // Particles stepped by one fork-join task, a few microseconds of work; smaller
+    // scenes run on the caller.
+    static final int PARALLEL_CHUNK = 1024;
+
+    // Keep in sync with farZ and farStepSpeedbump in particle.rsh.
+    static final float FAR_Z = 5.0f;
+    static final float FAR_SPEEDBUMP = 1.0f;
+
+    private final int mDotCount;
+    private final int mBeamCount;
+
+    private final float[] mDotX;
+    private final float[] mDotY;
+    private final float[] mDotZ;
+
+    private final float[] mBeamX;
+    private final float[] mBeamY;
+    private final float[] mBeamZ;
+
+    private final Random mRandom;
+    private long mSeed;
+    private int mStepCount;
+    private int mNearDotCount;
+    private int mNearBeamCount;
+    private float mFarSpeedbump;
+    private ForkJoinPool mPool;
+
+    private float mAccumulator;
+
+    public ParticleSimulation(int dotCount, int beamCount, long seed) {
+        mDotCount = dotCount;
+        mBeamCount = beamCount;
+        mDotX = new float[dotCount];
+        mDotY = new float[dotCount];
+        mDotZ = new float[dotCount];
+        mBeamX = new float[beamCount];
+        mBeamY = new float[beamCount];
+        mBeamZ = new float[beamCount];
+        mRandom = new Random(seed);
+        mSeed = seed;
+    }
+
+    public void setSeed(long seed) {
+        mRandom.setSeed(seed);
+        mSeed = seed;
+        mStepCount = 0;
+    }
+
+    /**
+     * Steps scenes of more than PARALLEL_CHUNK particles on pool, or always on the
+     * calling thread if pool is null.
+     */
+    public void setPool(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Lays out every particle the same way positionParticles() in the script used to,
+     * assigning depth layers by each particle's share of the original layout.
+     */
+    public void reset() {
+        for (int i = 0; i < mDotCount; i++) {
+            mDotX[i] = rand(0.0f, 3.0f);
+            mDotY[i] = rand(-1.25f, 1.25f);
+
+            int slot = getLayoutSlot(i, mDotCount);
+            float z;
+            if (slot < 3) {
+                z = 14.0f;
+            } else if (slot < 7) {
+                z = 25.0f;
+            } else if (slot == 10) {
+                z = 24.0f;
+                if (getLayoutSlot(i - 1, mDotCount) != slot) {
+                    mDotX[i] = 1.0f;
+                }
+            } else {
+                z = rand(6.0f, 14.0f);
+            }
+            mDotZ[i] = z;
+        }
+
+        for (int i = 0; i < mBeamCount; i++) {
+            float z;
+            if (getLayoutSlot(i, mBeamCount) < 20) {
+                z = rand(4.0f, 10.0f) / 2.0f;
+            } else {
+                z = rand(4.0f, 35.0f) / 2.0f;
+            }
+            mBeamX[i] = rand(-1.25f, 1.25f);
+            mBeamY[i] = rand(-1.05f, 1.205f);
+            mBeamZ[i] = z;
+        }
+
+        mNearDotCount = partitionNear(mDotX, mDotY, mDotZ, mDotCount);
+        mNearBeamCount = partitionNear(mBeamX, mBeamY, mBeamZ, mBeamCount);
+        mFarSpeedbump = 0.0f;
+    }
+
+    /**
+     * Moves the particles with z of at least FAR_Z to the front, keeping the layout
+     * order within the near and far ones, and returns how many are near.
+     */
+    private static int partitionNear(float[] x, float[] y, float[] z, int count) {
+        float[] sorted = new float[count * 3];
+        int near = 0;
+        for (int i = 0; i < count; i++) {
+            if (z[i] >= FAR_Z) {
+                near++;
+            }
+        }
+        int nearIndex = 0;
+        int farIndex = near;
+        for (int i = 0; i < count; i++) {
+            int o = (z[i] >= FAR_Z ? nearIndex++ : farIndex++) * 3;
+            sorted[o] = x[i];
+            sorted[o + 1] = y[i];
+            sorted[o + 2] = z[i];
+        }
+        for (int i = 0; i < count; i++) {
+            x[i] = sorted[i * 3];
+            y[i] = sorted[i * 3 + 1];
+            z[i] = sorted[i * 3 + 2];
+        }
+        return near;
+    }
+
+    private static int getLayoutSlot(int index, int count) {
+        return (int) ((long) index * LAYOUT_SLOTS / count);
+    }
+
+    /**
+     * Advances the simulation by elapsedMillis of wall time and returns the number
+     * of fixed steps taken. Leftover time is carried to the next call, so the speed
+     * of the animation does not depend on how often this is called. Mirrors the
+     * accumulator in root().
+     */
+    public int advance(float elapsedMillis) {
+        mAccumulator += Math.max(0.0f, elapsedMillis);
+        int steps = (int) (mAccumulator / STEP_MILLIS);
+        mAccumulator -= steps * STEP_MILLIS;
+        if (steps > MAX_STEPS) {
+            steps = MAX_STEPS;
+        }
+        if (steps > 0) {
+            // Motion is linear between respawns, so n steps are taken as one.
+            step(steps * STEP_SPEEDBUMP);
+        }
+        return steps;
+    }
+
+    /**
+     * Moves all particles by speedbump times the distance of one 66 ms frame of the
+     * original animation.
+     */
+    public void step(float speedbump) {
+        int count = mBeamCount + mDotCount;
+        int seed = (int) (mSeed * 31 + mStepCount++);
+        mFarSpeedbump += speedbump;
+        float farSpeedbump = 0.0f;
+        if (mFarSpeedbump >= FAR_SPEEDBUMP) {
+            farSpeedbump = mFarSpeedbump;
+            mFarSpeedbump = 0.0f;
+        }
+        if (mPool != null && count > PARALLEL_CHUNK) {
+            mPool.invoke(new StepTask(this, 0, count, speedbump, farSpeedbump, seed));
+        } else {
+            stepRange(0, count, speedbump, farSpeedbump, seed);
+        }
+    }
+
+    /**
+     * Steps the particles in [from, to), counting beams first and then dots like
+     * the allocation in the script, far ones only if farSpeedbump is not 0.
+     */
+    void stepRange(int from, int to, float speedbump, float farSpeedbump, int seed) {
+        int beamEnd = Math.min(to, mBeamCount);
+        stepBeams(from, Math.min(beamEnd, mNearBeamCount), speedbump, seed);
+        if (farSpeedbump != 0.0f) {
+            stepBeams(Math.max(from, mNearBeamCount), beamEnd, farSpeedbump, seed);
+        }
+
+        int dotStart = Math.max(0, from - mBeamCount);
+        int dotEnd = to - mBeamCount;
+        stepDots(dotStart, Math.min(dotEnd, mNearDotCount), speedbump, seed);
+        if (farSpeedbump != 0.0f) {
+            stepDots(Math.max(dotStart, mNearDotCount), dotEnd, farSpeedbump, seed);
+        }
+    }
+
+    // The two loops below mirror root() in particles.rs.
+    private void stepBeams(int from, int to, float speedbump, int seed) {
+        final float[] bx = mBeamX;
+        final float[] by = mBeamY;
+        final float[] bz = mBeamZ;
+        for (int i = from; i < to; i++) {
+            final float z = bz[i];
+            if (bx[i] / z > 0.5) {
+                bx[i] = -1.0f;
+            }
+            if (by[i] > 1.15) {
+                by[i] = -1.15f;
+                bx[i] = hashRand(i, seed, -1.25f, 1.25f);
+            } else {
+                by[i] += YZ_BEAM_SPEED * z * speedbump;
+            }
+            bx[i] += ZX_BEAM_SPEED * z * speedbump;
+        }
+    }
+
+    private void stepDots(int from, int to, float speedbump, int seed) {
+        final float[] dx = mDotX;
+        final float[] dy = mDotY;
+        final float[] dz = mDotZ;
+        for (int i = from; i < to; i++) {
+            final float z = dz[i];
+            if (dx[i] / z > 0.5) {
+                dx[i] = -1.0f;
+            }
+            if (dy[i] > 1.25) {
+                dy[i] = -1.25f;
+                dx[i] = hashRand(mBeamCount + i, seed, 0.0f, 3.0f);
+            } else {
+                dy[i] += YZ_PARTICLE_SPEED * z * speedbump;
+            }
+            dx[i] += ZX_PARTICLE_SPEED * z * speedbump;
+        }
+    }
+
+    /**
+     * Returns a value in [min, max) that only depends on index and seed, same as
+     * hashRand() in particles.rs.
+     */
+    static float hashRand(int index, int seed, float min, float max) {
+        int h = index * 0x9e3779b9 ^ seed * 0x85ebca6b;
+        h ^= h >>> 16;
+        h *= 0x7feb352d;
+        h ^= h >>> 15;
+        h *= 0x846ca68b;
+        h ^= h >>> 16;
+        return min + (h >>> 8) * (1.0f / 16777216.0f) * (max - min);
+    }
+
+    private static class StepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ParticleSimulation mSimulation;
+        private final int mFrom;
+        private final int mTo;
+        private final float mSpeedbump;
+        private final float mFarSpeedbump;
+        private final int mSeed;
+
+        StepTask(ParticleSimulation simulation, int from, int to, float speedbump,
+                float farSpeedbump, int seed) {
+            mSimulation = simulation;
+            mFrom = from;
+            mTo = to;
+            mSpeedbump = speedbump;
+            mFarSpeedbump = farSpeedbump;
+            mSeed = seed;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= PARALLEL_CHUNK) {
+                mSimulation.stepRange(mFrom, mTo, mSpeedbump, mFarSpeedbump, mSeed);
+            } else {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new StepTask(mSimulation, mFrom, middle, mSpeedbump,
+                                mFarSpeedbump, mSeed),
+                        new StepTask(mSimulation, middle, mTo, mSpeedbump,
+                                mFarSpeedbump, mSeed));
+            }
+        }
+    }
+
+    /**
+     * Writes dot positions into an interleaved buffer laid out like the script's
+     * Particle struct, stride being the struct size in floats and offset the index
+     * of the first float to write.
+     */
+    public void copyDots(float[] dst, int stride, int offset) {
+        interleave(mDotX, mDotY, mDotZ, mDotCount, dst, stride, offset);
+    }
+
+    public void copyBeams(float[] dst, int stride, int offset) {
+        interleave(mBeamX, mBeamY, mBeamZ, mBeamCount, dst, stride, offset);
+    }
+
+    /**
+     * Takes the dot positions from src, laid out like copyDots() writes them, e.g.
+     * after a script moved them.
+     */
+    public void setDots(float[] src, int stride, int offset) {
+        deinterleave(src, stride, offset, mDotX, mDotY, mDotZ, mDotCount);
+    }
+
+    public void setBeams(float[] src, int stride, int offset) {
+        deinterleave(src, stride, offset, mBeamX, mBeamY, mBeamZ, mBeamCount);
+    }
+
+    private static void interleave(float[] x, float[] y, float[] z, int count,
+            float[] dst, int stride, int offset) {
+        for (int i = 0, o = offset; i < count; i++, o += stride) {
+            dst[o] = x[i];
+            dst[o + 1] = y[i];
+            dst[o + 2] = z[i];
+        }
+    }
+
+    private static void deinterleave(float[] src, int stride, int offset,
+            float[] x, float[] y, float[] z, int count) {
+        for (int i = 0, o = offset; i < count; i++, o += stride) {
+            x[i] = src[o];
+            y[i] = src[o + 1];
+            z[i] = src[o + 2];
+        }
+    }
+
+    private float rand(float min, float max) {
+        return min + mRandom.nextFloat() * (max - min);
+    }
+
+    public int getDotCount() {
+        return mDotCount;
+    }
+
+    public int getBeamCount() {
+        return mBeamCount;
+    }
+
+    public float[] getDotX() {
+        return mDotX;
+    }
+
+    public float[] getDotY() {
+        return mDotY;
+    }
+
+    public float[] getDotZ() {
+        return mDotZ;
+    }
+
+    public float[] getBeamX() {
+        return mBeamX;
+    }
+
+    public float[] getBeamY() {
+        return mBeamY;
+    }
+
+    public float[] getBeamZ() {
+        return mBeamZ;
+    }
+}
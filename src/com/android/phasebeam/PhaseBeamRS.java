@@ -1,12 +1,15 @@
 package com.android.phasebeam;
 
-import static android.renderscript.Sampler.Value.NEAREST;
-import static android.renderscript.Sampler.Value.WRAP;
+import static android.renderscript.Sampler.Value.CLAMP;
+import static android.renderscript.Sampler.Value.LINEAR;
+import static android.renderscript.Sampler.Value.LINEAR_MIP_LINEAR;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.renderscript.Allocation;
+import android.renderscript.BaseObj;
+import android.renderscript.Element;
 import android.renderscript.Matrix4f;
 import android.renderscript.Mesh;
 import android.renderscript.Program;
@@ -18,22 +21,30 @@ import android.renderscript.ProgramVertex;
 import android.renderscript.ProgramVertexFixedFunction;
 import android.renderscript.RenderScriptGL;
 import android.renderscript.Sampler;
+import android.renderscript.Type;
 import android.renderscript.ProgramStore.BlendDstFunc;
 import android.renderscript.ProgramStore.BlendSrcFunc;
 import android.renderscript.Mesh.Primitive;
-import android.graphics.Color;
 import android.renderscript.Float3;
-import android.renderscript.Float4;
-import java.io.InputStreamReader;
-import java.io.InputStream;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.util.ArrayList;
-import android.util.Log;
-
-public class PhaseBeamRS implements SharedPreferences.OnSharedPreferenceChangeListener {
+import android.view.Choreographer;
+
+import java.io.PrintWriter;
+
+public class PhaseBeamRS implements PhaseBeamRenderer,
+        SharedPreferences.OnSharedPreferenceChangeListener,
+        AdjustChannel.Listener, Choreographer.FrameCallback, SharedSimulation.Listener {
     public static String LOG_TAG = "PhaseBeam";
     public static final int DOT_COUNT = 28;
+    // Values of the Particle sprite field.
+    private static final float SPRITE_DOT = 0.0f;
+    private static final float SPRITE_BEAM = 1.0f;
+    // Number of dots, and of beams, for each density setting.
+    private static final int[] PARTICLE_COUNTS = { DOT_COUNT, DOT_COUNT * 10, DOT_COUNT * 100 };
+    private static final int FRAME_TIMING_COUNT = 256;
+    private static final int FRAME_TIMING_FIELDS = 5;
+    // Uploads from SharedSimulation may come this much early, half a vsync, so that
+    // a 16 ms frame delay still gets one every tick.
+    private static final long UPLOAD_SLACK_NANOS = 8000000L;
     private Resources mRes;
     private RenderScriptGL mRS;
     private ScriptC_phasebeam mScript;
@@ -41,107 +52,485 @@ public class PhaseBeamRS implements SharedPreferences.OnSharedPreferenceChangeLi
     int mWidth;
 
     private ScriptField_VpConsts mPvConsts;
-    private Allocation mDotAllocation;
-    private Allocation mBeamAllocation;
+    private Allocation mAtlas;
+    private Allocation mGreyAtlas;
+    private boolean mRecolor;
+    private Allocation mRampAllocation;
+    private final byte[] mRampData = new byte[HslRamp.SIZE * 4];
 
-    private ScriptField_Particle mDotParticles;
-    private Mesh mDotMesh;
+    private ScriptField_Particle mParticles;
+    private Mesh mParticleMesh;
 
-    private ScriptField_Particle mBeamParticles;
-    private Mesh mBeamMesh;
+    private int mParticleCount;
 
     private ScriptField_VertexColor_s mVertexColors;
 
+    private ParticleSimulation mSimulation;
+    private SharedSimulation mSharedSimulation;
+    private boolean mUseSharedSimulation;
+    // Whether root() moves the particles rather than taking uploads from Java.
+    private boolean mScriptSimulates;
+    private long mLastUploadNanos;
+    private int mFrameDelay = 66;
+    private int mScrollFrameDelay = 16;
+    private int mAmbientFrameDelay;
+
+    private boolean mAmbient;
+    private boolean mLowPower;
+    private boolean mCacheBackground;
+    private Allocation mBgTarget;
+    private ProgramVertexFixedFunction.Constants mBlitConstants;
+    private float[] mParticleData;
+    private int mParticleStride;
+    private int mParticleSpriteOffset;
+    private final ParticleCuller mCuller = new ParticleCuller();
+
+    // Everything created for this engine alone, see EngineResources.
+    private EngineResources<Object> mResources;
+
+    private final FrameStats mStats;
+    private Allocation mFrameTimings;
+    private int[] mFrameTimingData;
+    private int mLastCollectedFrame;
+    private final Choreographer.FrameCallback mCollectFrameTimings =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            collectFrameTimings();
+            scheduleFrameTimingCollection();
+        }
+    };
+
     private int mDensityDPI;
+    private int mSpriteSampleSize;
     private SharedPreferences mSharedPref;
     private Context mContext;
     private boolean mCanScroll;
+    private float mXOffset = 0.5f;
+    private final OffsetSmoother mOffsetSmoother = new OffsetSmoother(0.5f);
+    private boolean mOffsetFramePosted;
+    private boolean mStarted;
+    private Float3 mAdjust = new Float3(-1.0f, 1.0f, 1.0f);
 
     boolean mInited = false;
 
+    public PhaseBeamRS() {
+        this(new FrameStats());
+    }
+
+    public PhaseBeamRS(FrameStats stats) {
+        mStats = stats;
+    }
+
     public void init(Context context, int dpi, RenderScriptGL rs,
             Resources res, int width, int height) {
         if (!mInited) {
+            long start = System.nanoTime();
             mDensityDPI = dpi;
+            mSpriteSampleSize = SpriteAtlas.getSampleSize(dpi);
             mContext = context;
             mSharedPref = mContext.getSharedPreferences(PhaseBeamSelector.KEY_PREFS,
                     Context.MODE_PRIVATE);
             mSharedPref.registerOnSharedPreferenceChangeListener(this);
+            AdjustChannel.getInstance().addListener(this);
 
             mRS = rs;
             mRes = res;
+            ResourceCache.acquire();
 
             mWidth = width;
             mHeight = height;
             mCanScroll = mRes.getBoolean(R.bool.scrolling_enabled);
+            mUseSharedSimulation = mRes.getBoolean(R.bool.shared_simulation);
 
-            mDotParticles = new ScriptField_Particle(mRS, DOT_COUNT);
-            Mesh.AllocationBuilder smb2 = new Mesh.AllocationBuilder(mRS);
-            smb2.addVertexAllocation(mDotParticles.getAllocation());
-            smb2.addIndexSetType(Mesh.Primitive.POINT);
-            mDotMesh = smb2.create();
-
-            mBeamParticles = new ScriptField_Particle(mRS, DOT_COUNT);
-            Mesh.AllocationBuilder smb3 = new Mesh.AllocationBuilder(mRS);
-            smb3.addVertexAllocation(mBeamParticles.getAllocation());
-            smb3.addIndexSetType(Mesh.Primitive.POINT);
-            mBeamMesh = smb3.create();
+            mCacheBackground = mRes.getBoolean(R.bool.cache_background);
+            mResources = new EngineResources<Object>(new ResourceFactory(), mCacheBackground,
+                    mWidth, mHeight);
 
-            mScript = new ScriptC_phasebeam(mRS, mRes, R.raw.phasebeam);
-            mScript.set_dotMesh(mDotMesh);
-            mScript.set_beamMesh(mBeamMesh);
-            mScript.bind_dotParticles(mDotParticles);
-            mScript.bind_beamParticles(mBeamParticles);
+            mCuller.setViewport(mWidth, mHeight, mDensityDPI / 240.0f);
+            mScript = mResources.add(new ScriptC_phasebeam(mRS, mRes, R.raw.phasebeam));
+            mScript.set_particleScript(mResources.add(
+                    new ScriptC_particles(mRS, mRes, R.raw.particles)));
+            mResources.setParticleCount(getParticleCount());
 
             mPvConsts = new ScriptField_VpConsts(mRS, 1);
+            mResources.add(mPvConsts.getAllocation());
+            mScript.bind_vpConstants(mPvConsts);
+
+            mFrameTimingData = new int[FRAME_TIMING_COUNT * FRAME_TIMING_FIELDS];
+            mFrameTimings = mResources.add(Allocation.createSized(mRS, Element.I32(mRS),
+                    mFrameTimingData.length));
+            mFrameTimings.copyFrom(mFrameTimingData);
+            mScript.bind_frameTimings(mFrameTimings);
 
             createProgramVertex();
             createProgramRaster();
             createProgramFragmentStore();
             createProgramFragment();
+            createBlitPrograms();
             createBackgroundMesh();
             loadTextures();
 
             mScript.set_densityDPI(mDensityDPI);
+            setScriptSimulates(!mUseSharedSimulation);
+            mAmbientFrameDelay = 1000 / mRes.getInteger(R.integer.ambient_frame_rate);
+            mScript.set_ambientFrameDelay(mAmbientFrameDelay);
+            mScript.set_cacheBackground(mCacheBackground);
+            mResources.setAmbient(mAmbient);
 
             mRS.bindRootScript(mScript);
+            mStarted = true;
+            scheduleFrameTimingCollection();
 
-            mScript.invoke_positionParticles();
+            positionParticles();
             makeNewState();
 
             mInited = true;
+            mStats.recordSince(FrameStats.INIT, start);
         }
     }
 
     public void uninit() {
+        Choreographer.getInstance().removeFrameCallback(this);
+        Choreographer.getInstance().removeFrameCallback(mCollectFrameTimings);
+        releaseSharedSimulation();
+        collectFrameTimings();
         mSharedPref.unregisterOnSharedPreferenceChangeListener(this);
+        AdjustChannel.getInstance().removeListener(this);
+        mRS.bindRootScript(null);
+        mResources.releaseAll();
+        ResourceCache.release();
+    }
+
+    public void dumpResources(String prefix, PrintWriter out) {
+        mResources.getRegistry().dump(prefix, out);
+    }
+
+    /**
+     * Makes the objects EngineResources replaces over the life of the engine and
+     * binds them to the script.
+     */
+    private class ResourceFactory implements EngineResources.Factory<Object> {
+        @Override
+        public void release(Object resource) {
+            // Constants wraps an allocation but is no BaseObj itself.
+            if (resource instanceof ProgramVertexFixedFunction.Constants) {
+                ((ProgramVertexFixedFunction.Constants) resource).destroy();
+            } else {
+                ((BaseObj) resource).destroy();
+            }
+        }
+
+        @Override
+        public long getBytes(Object resource) {
+            if (resource instanceof Allocation) {
+                Type type = ((Allocation) resource).getType();
+                return (long) type.getCount() * type.getElement().getBytesSize();
+            }
+            if (resource instanceof ProgramVertexFixedFunction.Constants) {
+                // Model view, projection and texture matrices.
+                return 3 * 64;
+            }
+            return 0;
+        }
+
+        @Override
+        public Object createParticles(int count) {
+            mParticles = new ScriptField_Particle(mRS, count * 2);
+            return mParticles.getAllocation();
+        }
+
+        @Override
+        public Object createParticleMesh(Object particles) {
+            Mesh.AllocationBuilder builder = new Mesh.AllocationBuilder(mRS);
+            builder.addVertexAllocation((Allocation) particles);
+            builder.addIndexSetType(Mesh.Primitive.POINT);
+            return builder.create();
+        }
+
+        @Override
+        public void bindParticles(Object particles, Object mesh, int count) {
+            bindParticleMesh((Mesh) mesh, count);
+        }
+
+        @Override
+        public Object createBackgroundTarget(int width, int height) {
+            Type.Builder builder = new Type.Builder(mRS, Element.RGBA_8888(mRS));
+            builder.setX(width);
+            builder.setY(height);
+            return Allocation.createTyped(mRS, builder.create(),
+                    Allocation.MipmapControl.MIPMAP_NONE,
+                    Allocation.USAGE_GRAPHICS_TEXTURE
+                            | Allocation.USAGE_GRAPHICS_RENDER_TARGET);
+        }
+
+        @Override
+        public void bindBackgroundTarget(Object target) {
+            mBgTarget = (Allocation) target;
+            mScript.set_bgTarget(mBgTarget);
+            if (mBgTarget != null) {
+                mScript.invoke_invalidateBackground();
+            }
+        }
     }
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (key.equals(PhaseBeamSelector.KEY_ENABLED)) {
-            loadTextures();
+        if (key.equals(PhaseBeamSelector.KEY_DENSITY)) {
+            setParticleCount(getParticleCount());
+        } else {
+            makeNewState();
+        }
+    }
+
+    @Override
+    public void onAdjustChanged(boolean enabled, float hue, float saturation,
+            float brightness) {
+        applyAdjust(enabled, hue, saturation, brightness);
+    }
+
+    private int getParticleCount() {
+        return getParticleCount(mSharedPref, mRes);
+    }
+
+    /**
+     * Returns the number of dots, and of beams, for the density setting in prefs.
+     */
+    static int getParticleCount(SharedPreferences prefs, Resources res) {
+        int density = prefs.getInt(PhaseBeamSelector.KEY_DENSITY,
+                res.getInteger(R.integer.density));
+        return PARTICLE_COUNTS[Math.max(0, Math.min(density, PARTICLE_COUNTS.length - 1))];
+    }
+
+    /**
+     * Points the script at mParticles, one allocation holding count beams followed
+     * by count dots, each tagged with its sprite, so the whole particle layer is a
+     * single mesh.
+     */
+    private void bindParticleMesh(Mesh mesh, int count) {
+        mParticleMesh = mesh;
+
+        // root() must not draw the old counts from the new, possibly smaller mesh;
+        // uploadParticles() sets them again.
+        mScript.set_drawnBeams(0);
+        mScript.set_drawnDots(0);
+        mScript.set_particleMesh(mParticleMesh);
+        mScript.bind_particles(mParticles);
+        mScript.set_numBeamParticles(count);
+        mParticleCount = count;
+
+        Element element = mParticles.getAllocation().getType().getElement();
+        mParticleStride = element.getBytesSize() / 4;
+        mParticleData = new float[count * 2 * mParticleStride];
+        mParticleSpriteOffset = getFieldOffset(element, "sprite");
+        for (int i = 0; i < count * 2; i++) {
+            mParticleData[i * mParticleStride + mParticleSpriteOffset] =
+                    i < count ? SPRITE_BEAM : SPRITE_DOT;
+        }
+    }
+
+    private void positionParticles() {
+        mScript.invoke_positionParticles();
+        if (mUseSharedSimulation) {
+            releaseSharedSimulation();
+            mSharedSimulation = SharedSimulation.acquire(mParticleCount);
+            mSimulation = mSharedSimulation.getSimulation();
+            if (mStarted) {
+                mSharedSimulation.addListener(this);
+            }
+        } else {
+            mSimulation = new ParticleSimulation(mParticleCount, mParticleCount,
+                    System.currentTimeMillis());
+            mSimulation.reset();
+        }
+        uploadParticles();
+    }
+
+    private void releaseSharedSimulation() {
+        if (mSharedSimulation != null) {
+            mSharedSimulation.removeListener(this);
+            mSharedSimulation.release();
+            mSharedSimulation = null;
+        }
+    }
+
+    private void setScriptSimulates(boolean simulates) {
+        mScriptSimulates = simulates;
+        mScript.set_simulate(simulates);
+    }
+
+    @Override
+    public void onSimulationTaken(ParticleSimulation simulation) {
+        setScriptSimulates(true);
+        uploadParticles();
+    }
+
+    @Override
+    public void onSimulationReturned(ParticleSimulation simulation) {
+        // The particle struct cannot be read from Java, so the script copies the
+        // positions into a plain float allocation first.
+        int count = mParticleCount;
+        Allocation copy = mResources.add(Allocation.createSized(mRS, Element.F32(mRS),
+                count * 2 * 3));
+        mScript.bind_particleCopy(copy);
+        mScript.invoke_saveParticles();
+        float[] data = new float[count * 2 * 3];
+        copy.copyTo(data);
+        mScript.bind_particleCopy(null);
+        mResources.getRegistry().release(copy);
+        simulation.setBeams(data, 3, 0);
+        simulation.setDots(data, 3, count * 3);
+        setScriptSimulates(false);
+    }
+
+    @Override
+    public void onSimulationStepped(ParticleSimulation simulation, long frameTimeNanos) {
+        // Uploading more often than root() draws would only cost time.
+        int delay = mOffsetFramePosted ? mScrollFrameDelay
+                : mAmbient ? Math.max(mFrameDelay, mAmbientFrameDelay) : mFrameDelay;
+        if (frameTimeNanos - mLastUploadNanos < delay * 1000000L - UPLOAD_SLACK_NANOS) {
+            return;
         }
-        makeNewState();
+        mLastUploadNanos = frameTimeNanos;
+        uploadParticles();
+    }
+
+    /**
+     * Swaps the particle allocations for ones of the new size while the rest of the
+     * engine (programs, background, textures) stays in place.
+     */
+    private void setParticleCount(int count) {
+        if (count == mParticleCount) {
+            return;
+        }
+        // Any positions the script moved are saved from the old allocation first.
+        releaseSharedSimulation();
+        // Releases the old objects once the script is rebound to the new ones.
+        mResources.setParticleCount(count);
+        positionParticles();
     }
 
     private void makeNewState() {
+        updateAmbient();
+        applyAdjust(mSharedPref.getBoolean(PhaseBeamSelector.KEY_ENABLED,
+                    mRes.getBoolean(R.bool.recolor_enabled)),
+                mSharedPref.getFloat(PhaseBeamSelector.KEY_HUE,
+                    Float.valueOf(mRes.getString(R.string.hue))),
+                mSharedPref.getFloat(PhaseBeamSelector.KEY_SATURATION,
+                    Float.valueOf(mRes.getString(R.string.saturation))),
+                mSharedPref.getFloat(PhaseBeamSelector.KEY_BRIGHTNESS,
+                    Float.valueOf(mRes.getString(R.string.brightness))));
+    }
+
+    private void applyAdjust(boolean enabled, float hue, float saturation, float brightness) {
+        if (enabled != mRecolor) {
+            mRecolor = enabled;
+            bindTextures();
+        }
+
         Float3 adjust;
-        if (mSharedPref.getBoolean(PhaseBeamSelector.KEY_ENABLED,
-                    mRes.getBoolean(R.bool.recolor_enabled))) {
-            adjust = new Float3(
-                    mSharedPref.getFloat(PhaseBeamSelector.KEY_HUE,
-                        Float.valueOf(mRes.getString(R.string.hue))),
-                    mSharedPref.getFloat(PhaseBeamSelector.KEY_SATURATION,
-                        Float.valueOf(mRes.getString(R.string.saturation))),
-                    mSharedPref.getFloat(PhaseBeamSelector.KEY_BRIGHTNESS,
-                        Float.valueOf(mRes.getString(R.string.brightness))));
+        if (enabled) {
+            adjust = new Float3(hue, saturation, brightness);
         } else {
             adjust = new Float3(-1.0f, 1.0f, 1.0f);
         }
+        if (adjust.x == mAdjust.x && adjust.y == mAdjust.y && adjust.z == mAdjust.z) {
+            return;
+        }
+        mAdjust = adjust;
+        if (enabled) {
+            HslRamp.fill(hue, saturation, brightness, mRampData);
+            mRampAllocation.copyFromUnchecked(mRampData);
+            mRampAllocation.syncAll(Allocation.USAGE_SCRIPT);
+        }
         mScript.set_adjust(adjust);
     }
 
+    /**
+     * Forces ambient mode on regardless of the user's choice, e.g. while the device
+     * is in power save mode.
+     */
+    public void setLowPower(boolean lowPower) {
+        mLowPower = lowPower;
+        if (mInited) {
+            updateAmbient();
+        }
+    }
+
+    private void updateAmbient() {
+        boolean ambient = mLowPower || mSharedPref.getBoolean(PhaseBeamSelector.KEY_AMBIENT,
+                mRes.getBoolean(R.bool.ambient_enabled));
+        if (ambient == mAmbient) {
+            return;
+        }
+        mAmbient = ambient;
+        // The target resolution depends on the mode, without caching it is dropped.
+        mResources.setAmbient(ambient);
+        mScript.set_ambient(ambient);
+    }
+
+    private void createBlitPrograms() {
+        ProgramVertexFixedFunction.Builder vertexBuilder =
+                new ProgramVertexFixedFunction.Builder(mRS);
+        ProgramVertexFixedFunction vertex = mResources.add(vertexBuilder.create());
+        mBlitConstants = mResources.add(new ProgramVertexFixedFunction.Constants(mRS));
+        vertex.bindConstants(mBlitConstants);
+        updateBlitProjection();
+        mScript.set_vertBlit(vertex);
+
+        ProgramFragmentFixedFunction.Builder fragmentBuilder =
+                new ProgramFragmentFixedFunction.Builder(mRS);
+        fragmentBuilder.setTexture(ProgramFragmentFixedFunction.Builder.EnvMode.REPLACE,
+                ProgramFragmentFixedFunction.Builder.Format.RGB, 0);
+        ProgramFragment fragment = mResources.add(fragmentBuilder.create());
+        fragment.bindSampler(Sampler.CLAMP_LINEAR(mRS), 0);
+        mScript.set_fragBlit(fragment);
+    }
+
+    private void updateBlitProjection() {
+        Matrix4f projection = new Matrix4f();
+        projection.loadOrthoWindow(mWidth, mHeight);
+        mBlitConstants.setProjection(projection);
+    }
+
+    private void createRamp() {
+        Type.Builder builder = new Type.Builder(mRS, Element.RGBA_8888(mRS));
+        builder.setX(HslRamp.SIZE);
+        builder.setY(1);
+        mRampAllocation = mResources.add(Allocation.createTyped(mRS, builder.create(),
+                Allocation.MipmapControl.MIPMAP_NONE,
+                Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT));
+    }
+
+    /**
+     * Uploads the current positions of mSimulation. While SharedSimulation steps them
+     * only the visible particles are uploaded and drawn, see ParticleCuller; when the
+     * script simulates, every particle has to stay in its allocation.
+     */
+    private void uploadParticles() {
+        int count = mParticleCount;
+        int stride = mParticleStride;
+        float[] data = mParticleData;
+        mSimulation.copyBeams(data, stride, 0);
+        mSimulation.copyDots(data, stride, count * stride);
+        if (mScriptSimulates) {
+            mParticles.getAllocation().copyFromUnchecked(data);
+            mScript.set_drawnBeams(count);
+            mScript.set_drawnDots(count);
+            return;
+        }
+
+        int beams = mCuller.compact(data, stride, mParticleSpriteOffset, 0, count,
+                SPRITE_BEAM, 0);
+        int dots = mCuller.compact(data, stride, mParticleSpriteOffset, count, count,
+                SPRITE_DOT, beams);
+        if (beams + dots > 0) {
+            mParticles.getAllocation().copy1DRangeFromUnchecked(0, beams + dots, data);
+        }
+        mScript.set_drawnBeams(beams);
+        mScript.set_drawnDots(dots);
+    }
+
     private Matrix4f getProjectionNormalized(int w, int h) {
         // range -1,1 in the narrow axis at z = 0.
         Matrix4f m1 = new Matrix4f();
@@ -171,83 +560,85 @@ public class PhaseBeamRS implements SharedPreferences.OnSharedPreferenceChangeLi
         ScriptField_VpConsts.Item i = new ScriptField_VpConsts.Item();
         i.MVP = projNorm;
         i.scaleSize = mDensityDPI / 240.0f;
+        // Kept up to date by the script, see root().
+        i.bgOffsetX = -mXOffset / 2.0f;
+        i.offsetX = mXOffset * 2.0f;
+        i.adjust = mAdjust;
+        i.dotSprite = SpriteAtlas.getDotRect(
+                ResourceCache.getBitmap(mRes, R.drawable.dot, mSpriteSampleSize),
+                mSpriteSampleSize);
+        i.beamSprite = SpriteAtlas.getBeamRect(
+                ResourceCache.getBitmap(mRes, R.drawable.beam, mSpriteSampleSize),
+                mSpriteSampleSize);
         mPvConsts.set(i, 0, true);
     }
 
-    private void createBackgroundMesh() {
-        // The composition and colors of the background mesh were plotted on paper and photoshop
-        // first then translated to the csv file in raw. Points and colors are not random.
-        ArrayList meshData = new ArrayList();
-        InputStream inputStream = mRes.openRawResource(R.raw.bgmesh);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-        try {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                meshData.add(line);
-            }
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Unable to load background mesh from csv file.");
-        } finally {
-            try {
-                inputStream.close();
-            } catch (IOException e) {
-                Log.e(LOG_TAG, "Unable to close background mesh csv file.");
+    private static int getFieldOffset(Element element, String name) {
+        for (int i = 0; i < element.getSubElementCount(); i++) {
+            if (name.equals(element.getSubElementName(i))) {
+                return element.getSubElementOffsetBytes(i) / 4;
             }
         }
+        throw new IllegalArgumentException("No field " + name + " in element");
+    }
+
+    private void createBackgroundMesh() {
+        // The composition and colors of the background mesh were plotted on paper and photoshop
+        // first then translated to the csv file in tools, which is converted to bgmesh.bin.
+        // Points and colors are not random.
+        BackgroundMesh mesh = ResourceCache.getBackgroundMesh(mRes);
 
-        int meshDataSize = meshData.size();
+        int meshDataSize = mesh.getVertexCount();
         mVertexColors = new ScriptField_VertexColor_s(mRS, meshDataSize);
-        for(int i=0; i<meshDataSize; i++) {
-            String line = (String) meshData.get(i);
-            String[] values = line.split(",");
-            float xPos = new Float(values[0]);
-            float yPos = new Float(values[1]);
-            float red = new Float(values[2]);
-            float green = new Float(values[3]);
-            float blue = new Float(values[4]);
-            mVertexColors.set_position(i, new Float3(xPos, yPos, 0.0f), false);
-            mVertexColors.set_color(i, new Float4(red, green, blue, 1.0f), false);
-            mVertexColors.set_realColor(i, new Float4(red, green, blue, 1.0f), false);
-            mVertexColors.set_adjust(i, new Float3(-1.0f, 1.0f, 1.0f), false);
-        }
-        mVertexColors.copyAll();
+        Allocation allocation = mResources.add(mVertexColors.getAllocation());
+        Element element = allocation.getType().getElement();
+        int stride = element.getBytesSize() / 4;
+        float[] data = new float[meshDataSize * stride];
+        mesh.copyPositions(data, stride, getFieldOffset(element, "position"));
+        mesh.copyColors(data, stride, getFieldOffset(element, "color"));
+        mesh.copyColors(data, stride, getFieldOffset(element, "realColor"));
+        allocation.copyFromUnchecked(data);
 
         Mesh.AllocationBuilder backgroundBuilder = new Mesh.AllocationBuilder(mRS);
         backgroundBuilder.addIndexSetType(Primitive.TRIANGLE);
         backgroundBuilder.addVertexAllocation(mVertexColors.getAllocation());
-        mScript.set_gBackgroundMesh(backgroundBuilder.create());
+        mScript.set_gBackgroundMesh(mResources.add(backgroundBuilder.create()));
         mScript.bind_vertexColors(mVertexColors);
     }
 
-    private Allocation loadTexture(int id) {
-        final Allocation allocation = Allocation.createFromBitmapResource(mRS, mRes, id,
-                                               Allocation.MipmapControl.MIPMAP_NONE,
-                                               Allocation.USAGE_GRAPHICS_TEXTURE);
-        return allocation;
+    /**
+     * Loads both the color and the grey atlas so toggling recolor only has to
+     * rebind them. Both share the SpriteAtlas layout, the grey one has a single
+     * channel which dot_fs reads the same way.
+     */
+    private void loadTextures() {
+        mAtlas = mResources.add(ResourceCache.createAtlas(mRS, mRes, R.drawable.dot,
+                R.drawable.beam, mSpriteSampleSize));
+        mGreyAtlas = mResources.add(ResourceCache.createLuminanceAtlas(mRS, mRes,
+                R.drawable.dot_grey, R.drawable.beam_grey, mSpriteSampleSize));
+        bindTextures();
     }
 
-    private void loadTextures() {
-        boolean recolor = mSharedPref.getBoolean(PhaseBeamSelector.KEY_ENABLED, false);
-        mDotAllocation = loadTexture(recolor ? R.drawable.dot_grey : R.drawable.dot);
-        mBeamAllocation = loadTexture(recolor ? R.drawable.beam_grey : R.drawable.beam);
-        mScript.set_textureDot(mDotAllocation);
-        mScript.set_textureBeam(mBeamAllocation);
+    private void bindTextures() {
+        mScript.set_textureParticles(mRecolor ? mGreyAtlas : mAtlas);
     }
 
     private void createProgramVertex() {
         ProgramVertex.Builder backgroundBuilder = new ProgramVertex.Builder(mRS);
-        backgroundBuilder.setShader(mRes, R.raw.bg_vs);
+        backgroundBuilder.setShader(ResourceCache.getShader(mRes, R.raw.bg_vs));
+        backgroundBuilder.addConstant(mPvConsts.getType());
         backgroundBuilder.addInput(ScriptField_VertexColor_s.createElement(mRS));
-        ProgramVertex programVertexBackground = backgroundBuilder.create();
+        ProgramVertex programVertexBackground = mResources.add(backgroundBuilder.create());
+        programVertexBackground.bindConstants(mPvConsts.getAllocation(), 0);
         mScript.set_vertBg(programVertexBackground);
 
         updateProjectionMatrices();
 
         ProgramVertex.Builder builder = new ProgramVertex.Builder(mRS);
-        builder.setShader(mRes, R.raw.dot_vs);
+        builder.setShader(ResourceCache.getShader(mRes, R.raw.dot_vs));
         builder.addConstant(mPvConsts.getType());
-        builder.addInput(mDotMesh.getVertexAllocation(0).getType().getElement());
-        ProgramVertex pvs = builder.create();
+        builder.addInput(mParticleMesh.getVertexAllocation(0).getType().getElement());
+        ProgramVertex pvs = mResources.add(builder.create());
         pvs.bindConstants(mPvConsts.getAllocation(), 0);
         mRS.bindProgramVertex(pvs);
         mScript.set_vertDots(pvs);
@@ -255,49 +646,183 @@ public class PhaseBeamRS implements SharedPreferences.OnSharedPreferenceChangeLi
     }
 
     private void createProgramFragment() {
+        createRamp();
+
         ProgramFragment.Builder backgroundBuilder = new ProgramFragment.Builder(mRS);
-        backgroundBuilder.setShader(mRes, R.raw.bg_fs);
-        ProgramFragment programFragmentBackground = backgroundBuilder.create();
+        backgroundBuilder.setShader(ResourceCache.getShader(mRes, R.raw.bg_fs));
+        backgroundBuilder.addTexture(Program.TextureType.TEXTURE_2D);
+        ProgramFragment programFragmentBackground =
+                mResources.add(backgroundBuilder.create());
+        programFragmentBackground.bindSampler(Sampler.CLAMP_LINEAR(mRS), 0);
+        programFragmentBackground.bindTexture(mRampAllocation, 0);
         mScript.set_fragBg(programFragmentBackground);
 
         ProgramFragment.Builder builder = new ProgramFragment.Builder(mRS);
-        builder.setShader(mRes, R.raw.dot_fs);
+        builder.setShader(ResourceCache.getShader(mRes, R.raw.dot_fs));
+        builder.addTexture(Program.TextureType.TEXTURE_2D);
         builder.addTexture(Program.TextureType.TEXTURE_2D);
-        ProgramFragment pf = builder.create();
-        pf.bindSampler(Sampler.CLAMP_LINEAR(mRS), 0);
+        ProgramFragment pf = mResources.add(builder.create());
+        pf.bindSampler(mResources.add(createMipSampler()), 0);
+        pf.bindSampler(Sampler.CLAMP_LINEAR(mRS), 1);
+        pf.bindTexture(mRampAllocation, 1);
         mScript.set_fragDots(pf);
 
     }
 
+    /**
+     * Returns a sampler that picks the atlas mip level matching each point's size.
+     */
+    private Sampler createMipSampler() {
+        Sampler.Builder builder = new Sampler.Builder(mRS);
+        builder.setMinification(LINEAR_MIP_LINEAR);
+        builder.setMagnification(LINEAR);
+        builder.setWrapS(CLAMP);
+        builder.setWrapT(CLAMP);
+        return builder.create();
+    }
+
     private void createProgramRaster() {
         ProgramRaster.Builder builder = new ProgramRaster.Builder(mRS);
         builder.setPointSpriteEnabled(true);
-        ProgramRaster pr = builder.create();
+        ProgramRaster pr = mResources.add(builder.create());
         mRS.bindProgramRaster(pr);
     }
 
     private void createProgramFragmentStore() {
         ProgramStore.Builder builder = new ProgramStore.Builder(mRS);
         builder.setBlendFunc(BlendSrcFunc.SRC_ALPHA, BlendDstFunc.ONE);
-        mRS.bindProgramStore(builder.create());
+        ProgramStore store = mResources.add(builder.create());
+        mRS.bindProgramStore(store);
+        mScript.set_storeBlend(store);
+        mScript.set_storeOpaque(ProgramStore.BLEND_NONE_DEPTH_NONE(mRS));
     }
 
     public void start() {
         mRS.bindRootScript(mScript);
+        mStarted = true;
+        if (mSharedSimulation != null) {
+            mSharedSimulation.addListener(this);
+        }
+        scheduleFrameTimingCollection();
     }
 
     public void stop() {
         mRS.bindRootScript(null);
+        mStarted = false;
+        if (mSharedSimulation != null) {
+            mSharedSimulation.removeListener(this);
+        }
+        jumpToOffset(mOffsetSmoother.getTarget());
+        Choreographer.getInstance().removeFrameCallback(mCollectFrameTimings);
+        collectFrameTimings();
+    }
+
+    private void scheduleFrameTimingCollection() {
+        // Half the ring at the scroll frame rate, the fastest root() runs at.
+        Choreographer choreographer = Choreographer.getInstance();
+        choreographer.removeFrameCallback(mCollectFrameTimings);
+        choreographer.postFrameCallbackDelayed(mCollectFrameTimings,
+                FRAME_TIMING_COUNT / 2 * mScrollFrameDelay);
+    }
+
+    public FrameStats getFrameStats() {
+        return mStats;
+    }
+
+    /**
+     * Moves the timings the script recorded since the last call into the FrameStats.
+     * The script keeps the last FRAME_TIMING_COUNT frames, so this should run at
+     * least that often to see every frame; while started it runs whenever half of
+     * them may have been drawn, and again on stop and before dumps.
+     */
+    public void collectFrameTimings() {
+        mFrameTimings.copyTo(mFrameTimingData);
+        int lastFrame = mLastCollectedFrame;
+        for (int i = 0; i < mFrameTimingData.length; i += FRAME_TIMING_FIELDS) {
+            int frame = mFrameTimingData[i];
+            if (frame <= mLastCollectedFrame) {
+                continue;
+            }
+            if (mFrameTimingData[i + 1] > 0) {
+                mStats.record(FrameStats.FRAME_INTERVAL, mFrameTimingData[i + 1]);
+            }
+            mStats.record(FrameStats.BACKGROUND, mFrameTimingData[i + 2]);
+            mStats.record(FrameStats.PARTICLES, mFrameTimingData[i + 3]);
+            mStats.record(FrameStats.DRAW, mFrameTimingData[i + 4]);
+            lastFrame = Math.max(lastFrame, frame);
+        }
+        mLastCollectedFrame = lastFrame;
     }
 
+    /**
+     * Feeds the launcher's offset to the OffsetSmoother, which hands the script one
+     * smoothed offset per display frame until it settles. Offsets arriving while
+     * stopped are applied right away, there is nothing on screen to animate.
+     */
     public void setOffset(float xOffset, float yOffset, int xPixels, int yPixels) {
-        if (mCanScroll) {
-            mScript.set_xOffset(xOffset);
+        if (!mCanScroll) {
+            return;
+        }
+        if (!mStarted) {
+            jumpToOffset(xOffset);
+            return;
+        }
+        mOffsetSmoother.setTarget(xOffset, System.nanoTime());
+        if (!mOffsetFramePosted) {
+            mOffsetFramePosted = true;
+            Choreographer.getInstance().postFrameCallback(this);
         }
     }
 
-    public void resize(int w, int h) {
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mOffsetFramePosted = false;
+        mXOffset = mOffsetSmoother.update(frameTimeNanos);
+        mScript.set_xOffset(mXOffset);
+        if (!mOffsetSmoother.isSettled()) {
+            mOffsetFramePosted = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    private void jumpToOffset(float xOffset) {
+        if (mOffsetFramePosted) {
+            mOffsetFramePosted = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+        mOffsetSmoother.reset(xOffset);
+        mXOffset = xOffset;
+        mScript.set_xOffset(xOffset);
+    }
+
+    public void setFrameDelay(int frameDelay, int scrollFrameDelay) {
+        mFrameDelay = frameDelay;
+        mScrollFrameDelay = scrollFrameDelay;
+        mScript.set_frameDelay(frameDelay);
+        mScript.set_scrollFrameDelay(scrollFrameDelay);
+    }
 
+    /**
+     * Updates the screen metrics and projection in place. Allocations, meshes and
+     * particle positions are kept, so the scene carries on where it was.
+     */
+    public void resize(int w, int h) {
+        if (!mInited || (w == mWidth && h == mHeight)) {
+            return;
+        }
+        long start = System.nanoTime();
+        mWidth = w;
+        mHeight = h;
+        mScript.invoke_setScreenSize(w, h);
+        mCuller.setViewport(w, h, mDensityDPI / 240.0f);
+        if (!mScriptSimulates) {
+            uploadParticles();
+        }
+        updateProjectionMatrices();
+        updateBlitProjection();
+        // The cached background is the only allocation that depends on the size.
+        mResources.setSize(w, h);
+        mStats.recordSince(FrameStats.RESIZE, start);
     }
 
 }
@@ -0,0 +1,34 @@
+package com.android.phasebeam;
+
+import java.io.PrintWriter;
+
+/**
+ * Operations the wallpaper and its preview perform on a running scene, whatever
+ * draws it.
+ */
+public interface PhaseBeamRenderer {
+    void start();
+
+    void stop();
+
+    void setOffset(float xOffset, float yOffset, int xPixels, int yPixels);
+
+    void setFrameDelay(int frameDelay, int scrollFrameDelay);
+
+    void resize(int w, int h);
+
+    /**
+     * Forces ambient mode on regardless of the user's choice, e.g. while the device
+     * is in power save mode.
+     */
+    void setLowPower(boolean lowPower);
+
+    /**
+     * Moves frame timings not yet reported into the engine's FrameStats.
+     */
+    void collectFrameTimings();
+
+    void dumpResources(String prefix, PrintWriter out);
+
+    void uninit();
+}
@@ -34,6 +34,7 @@ import android.os.RemoteException;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
@@ -54,6 +55,8 @@ public class PhaseBeamSelector extends Activity implements
     public static final String KEY_HUE = "hue";
     public static final String KEY_SATURATION = "saturation";
     public static final String KEY_BRIGHTNESS = "brightness";
+    public static final String KEY_DENSITY = "density";
+    public static final String KEY_AMBIENT = "ambient";
 
     private static final float HUE_RANGE_MIN = 0.0f;
     private static final float HUE_RANGE_MAX = 1.0f;
@@ -61,6 +64,8 @@ public class PhaseBeamSelector extends Activity implements
     private static final float SATURATION_RANGE_MAX = 1.0f;
     private static final float BRIGHTNESS_RANGE_MIN = 0.5f;
     private static final float BRIGHTNESS_RANGE_MAX = 1.5f;
+    // How long in ms the seek bars must rest before their values are saved.
+    private static final int SAVE_DELAY = 250;
 
     private WallpaperManager mWallpaperManager;
     private WallpaperConnection mWallpaperConnection;
@@ -69,9 +74,24 @@ public class PhaseBeamSelector extends Activity implements
     private SharedPreferences mSharedPref;
 
     private CheckBox mEnableBox;
+    private CheckBox mAmbientBox;
     private SeekBar mColorSeekBar;
     private SeekBar mSaturationSeekBar;
     private SeekBar mBrightnessSeekBar;
+    private SeekBar mDensitySeekBar;
+
+    private float mHue;
+    private float mSaturation;
+    private float mBrightness;
+
+    private final Handler mHandler = new Handler();
+    private boolean mSavePending;
+    private final Runnable mSaveSeekBars = new Runnable() {
+        @Override
+        public void run() {
+            saveSeekBars();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -87,12 +107,16 @@ public class PhaseBeamSelector extends Activity implements
 
         mEnableBox = (CheckBox) findViewById(R.id.recolor);
         mEnableBox.setOnCheckedChangeListener(this);
+        mAmbientBox = (CheckBox) findViewById(R.id.ambient);
+        mAmbientBox.setOnCheckedChangeListener(this);
         mColorSeekBar = (SeekBar) findViewById(R.id.hue);
         mColorSeekBar.setOnSeekBarChangeListener(this);
         mSaturationSeekBar = (SeekBar) findViewById(R.id.saturation);
         mSaturationSeekBar.setOnSeekBarChangeListener(this);
         mBrightnessSeekBar = (SeekBar) findViewById(R.id.brightness);
         mBrightnessSeekBar.setOnSeekBarChangeListener(this);
+        mDensitySeekBar = (SeekBar) findViewById(R.id.density);
+        mDensitySeekBar.setOnSeekBarChangeListener(this);
     }
 
     @Override
@@ -111,6 +135,9 @@ public class PhaseBeamSelector extends Activity implements
     @Override
     public void onPause() {
         super.onPause();
+        if (mSavePending) {
+            saveSeekBars();
+        }
         if (mWallpaperConnection != null && mWallpaperConnection.mEngine != null) {
             try {
                 mWallpaperConnection.mEngine.setVisibility(false);
@@ -141,10 +168,15 @@ public class PhaseBeamSelector extends Activity implements
 
     @Override
     public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+        if (buttonView == mAmbientBox) {
+            mSharedPref.edit().putBoolean(KEY_AMBIENT, isChecked).apply();
+            return;
+        }
         mColorSeekBar.setEnabled(isChecked);
         mSaturationSeekBar.setEnabled(isChecked);
         mBrightnessSeekBar.setEnabled(isChecked);
         mSharedPref.edit().putBoolean(KEY_ENABLED, isChecked).apply();
+        publishAdjust();
     }
 
     @Override
@@ -152,26 +184,39 @@ public class PhaseBeamSelector extends Activity implements
         if (!fromUser) {
             return;
         }
+        // Changes from the keyboard or accessibility never start tracking, so every
+        // change is saved once the bar rests, which applies the density too.
+        mHandler.removeCallbacks(mSaveSeekBars);
+        mHandler.postDelayed(mSaveSeekBars, SAVE_DELAY);
+        mSavePending = true;
+        if (seekBar == mDensitySeekBar) {
+            return;
+        }
 
         float min, max;
-        String key;
 
         if (seekBar == mColorSeekBar) {
             min = HUE_RANGE_MIN;
             max = HUE_RANGE_MAX;
-            key = KEY_HUE;
         } else if (seekBar == mSaturationSeekBar) {
             min = SATURATION_RANGE_MIN;
             max = SATURATION_RANGE_MAX;
-            key = KEY_SATURATION;
         } else {
             min = BRIGHTNESS_RANGE_MIN;
             max = BRIGHTNESS_RANGE_MAX;
-            key = KEY_BRIGHTNESS;
         }
 
         float value = ((max - min) * progress / seekBar.getMax()) + min;
-        mSharedPref.edit().putFloat(key, value).apply();
+        if (seekBar == mColorSeekBar) {
+            mHue = value;
+        } else if (seekBar == mSaturationSeekBar) {
+            mSaturation = value;
+        } else {
+            mBrightness = value;
+        }
+        // Running engines follow the drag through the in-memory channel, the
+        // preferences only get the value it rests at.
+        publishAdjust();
     }
 
     @Override
@@ -181,18 +226,43 @@ public class PhaseBeamSelector extends Activity implements
 
     @Override
     public void onStopTrackingTouch(SeekBar seekBar) {
-        // Nothing to do here
+        if (mSavePending) {
+            saveSeekBars();
+        }
+    }
+
+    private void saveSeekBars() {
+        mHandler.removeCallbacks(mSaveSeekBars);
+        mSavePending = false;
+        mSharedPref.edit()
+                .putFloat(KEY_HUE, mHue)
+                .putFloat(KEY_SATURATION, mSaturation)
+                .putFloat(KEY_BRIGHTNESS, mBrightness)
+                .putInt(KEY_DENSITY, mDensitySeekBar.getProgress())
+                .apply();
+    }
+
+    private void publishAdjust() {
+        AdjustChannel.getInstance().publish(mEnableBox.isChecked(),
+                mHue, mSaturation, mBrightness);
     }
 
     private void updateUiFromPrefs() {
+        mHue = mSharedPref.getFloat(KEY_HUE, 0.0f);
+        mSaturation = mSharedPref.getFloat(KEY_SATURATION, 1.0f);
+        mBrightness = mSharedPref.getFloat(KEY_BRIGHTNESS, 1.0f);
+
         mEnableBox.setChecked(mSharedPref.getBoolean(KEY_ENABLED, false));
+        mAmbientBox.setChecked(mSharedPref.getBoolean(KEY_AMBIENT,
+                getResources().getBoolean(R.bool.ambient_enabled)));
 
-        updateSeekBarFromFloat(mColorSeekBar, mSharedPref.getFloat(KEY_HUE, 0.0f),
-                HUE_RANGE_MIN, HUE_RANGE_MAX);
-        updateSeekBarFromFloat(mSaturationSeekBar, mSharedPref.getFloat(KEY_SATURATION, 1.0f),
+        updateSeekBarFromFloat(mColorSeekBar, mHue, HUE_RANGE_MIN, HUE_RANGE_MAX);
+        updateSeekBarFromFloat(mSaturationSeekBar, mSaturation,
                 SATURATION_RANGE_MIN, SATURATION_RANGE_MAX);
-        updateSeekBarFromFloat(mBrightnessSeekBar, mSharedPref.getFloat(KEY_BRIGHTNESS, 1.0f),
+        updateSeekBarFromFloat(mBrightnessSeekBar, mBrightness,
                 BRIGHTNESS_RANGE_MIN, BRIGHTNESS_RANGE_MAX);
+        mDensitySeekBar.setProgress(mSharedPref.getInt(KEY_DENSITY,
+                getResources().getInteger(R.integer.density)));
     }
 
     private void updateSeekBarFromFloat(SeekBar seekBar, float value, float min, float max) {
@@ -8,7 +8,7 @@ import android.view.SurfaceHolder;
 public class PhaseBeamView extends RSSurfaceView {
 
     private RenderScriptGL mRS;
-    private PhaseBeamRS mRender;
+    private PhaseBeamRenderer mRender;
 
     public PhaseBeamView(Context context) {
         super(context);
@@ -19,24 +19,34 @@ public class PhaseBeamView extends RSSurfaceView {
     public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
         super.surfaceChanged(holder, format, w, h);
 
-        if (mRS == null) {
+        if (mRender != null) {
+            mRender.resize(w, h);
+        } else if (getResources().getBoolean(R.bool.software_renderer)) {
+            mRender = new SoftwareSurfaceRenderer(getContext(), holder, 240, w, h,
+                    new FrameStats());
+            mRender.start();
+        } else {
             RenderScriptGL.SurfaceConfig sc = new RenderScriptGL.SurfaceConfig();
             mRS = createRenderScriptGL(sc);
             mRS.setSurface(holder, w, h);
 
-            mRender = new PhaseBeamRS();
-            mRender.init(getContext(), 240, mRS, getResources(), w, h);
+            PhaseBeamRS render = new PhaseBeamRS();
+            render.init(getContext(), 240, mRS, getResources(), w, h);
+            mRender = render;
         }
 
     }
 
     @Override
     protected void onDetachedFromWindow() {
+        if (mRender != null) {
+            mRender.uninit();
+            mRender = null;
+        }
         if (mRS != null) {
             mRS.setSurface(null, 0, 0);
             mRS = null;
             destroyRenderScriptGL();
-            mRender.uninit();
         }
     }
 
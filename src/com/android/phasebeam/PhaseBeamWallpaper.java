@@ -1,8 +1,17 @@
 package com.android.phasebeam;
 
 import android.app.Service;
+import android.content.ComponentCallbacks2;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Resources;
 import android.graphics.PixelFormat;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.renderscript.RenderScript;
 import android.renderscript.RenderScriptGL;
 import android.service.wallpaper.WallpaperService;
@@ -10,18 +19,93 @@ import android.util.DisplayMetrics;
 import android.view.SurfaceHolder;
 import android.view.WindowManager;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
 public class PhaseBeamWallpaper extends WallpaperService {
+    /**
+     * Wallpaper command returning the engine's FrameStats as a Bundle, see getStats().
+     */
+    public static final String ACTION_GET_STATS = "com.android.phasebeam.action.GET_STATS";
+
+    private final ArrayList<RenderScriptEngine> mEngines = new ArrayList<RenderScriptEngine>();
 
     @Override
     public Engine onCreateEngine() {
-        return new RenderScriptEngine();
+        RenderScriptEngine engine = new RenderScriptEngine();
+        mEngines.add(engine);
+        return engine;
     }
 
-    private class RenderScriptEngine extends Engine {
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            for (int i = 0; i < mEngines.size(); i++) {
+                mEngines.get(i).releaseIfHidden();
+            }
+        }
+    }
+
+    /**
+     * An engine's renderer is hot while it is visible and drawing, warm while the
+     * root script is unbound but the RenderScript context and every allocation stay
+     * resident, and cold once both were released. Hiding the wallpaper or losing the
+     * surface only goes warm, so coming back is a bindRootScript() rather than a full
+     * init(); the renderer goes cold after warm_timeout or when memory runs low.
+     * The software backend has no context and only keeps its framebuffer while warm.
+     */
+    private class RenderScriptEngine extends Engine implements FrameScheduler.Callback {
         private RenderScriptGL mRenderScript = null;
-        private PhaseBeamRS mWallpaperRS = null;
+        private PhaseBeamRenderer mRenderer = null;
+        private boolean mSoftwareRenderer;
         private int mDensityDPI;
 
+        private SurfaceHolder mSurfaceHolder;
+        private int mSurfaceWidth;
+        private int mSurfaceHeight;
+        // What mRenderScript currently draws to.
+        private SurfaceHolder mBoundSurfaceHolder;
+        private int mBoundSurfaceWidth;
+        private int mBoundSurfaceHeight;
+        private int mWarmTimeout;
+
+        private float mXOffset = 0.5f;
+        private float mYOffset;
+        private int mXPixelOffset;
+        private int mYPixelOffset;
+
+        private final FrameStats mStats = new FrameStats();
+        private final Handler mHandler = new Handler();
+        private FrameScheduler mFrameScheduler;
+        private PowerManager mPowerManager;
+
+        private final Runnable mUpdateFrameDelay = new Runnable() {
+            @Override
+            public void run() {
+                updateFrameDelay();
+            }
+        };
+
+        private final Runnable mReleaseRenderer = new Runnable() {
+            @Override
+            public void run() {
+                destroyRenderer();
+            }
+        };
+
+        private final BroadcastReceiver mPowerSaveReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                mFrameScheduler.setPowerSaveMode(mPowerManager.isPowerSaveMode());
+                updateFrameDelay();
+                if (mRenderer != null) {
+                    mRenderer.setLowPower(mPowerManager.isPowerSaveMode());
+                }
+            }
+        };
+
         @Override
         public void onCreate(SurfaceHolder surfaceHolder) {
             super.onCreate(surfaceHolder);
@@ -33,84 +117,260 @@ public class PhaseBeamWallpaper extends WallpaperService {
             ((WindowManager) getApplication().getSystemService(Service.WINDOW_SERVICE))
                     .getDefaultDisplay().getMetrics(metrics);
             mDensityDPI = metrics.densityDpi;
+
+            Resources res = getResources();
+            mWarmTimeout = res.getInteger(R.integer.warm_timeout);
+            mSoftwareRenderer = res.getBoolean(R.bool.software_renderer);
+            FrameScheduler.Policy policy = new FrameScheduler.FixedRatePolicy(
+                    res.getInteger(R.integer.frame_rate),
+                    res.getInteger(R.integer.scroll_frame_rate));
+            policy = new FrameScheduler.IdleDecayPolicy(policy,
+                    res.getInteger(R.integer.idle_timeout),
+                    res.getInteger(R.integer.idle_frame_rate));
+            policy = new FrameScheduler.BatterySaverPolicy(policy,
+                    res.getInteger(R.integer.power_save_frame_rate),
+                    res.getInteger(R.integer.power_save_scroll_frame_rate));
+            mFrameScheduler = new FrameScheduler(policy, this);
+
+            mPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            mFrameScheduler.setPowerSaveMode(mPowerManager.isPowerSaveMode());
+            mFrameScheduler.update(SystemClock.uptimeMillis());
+            registerReceiver(mPowerSaveReceiver,
+                    new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED));
         }
 
         @Override
         public void onDestroy() {
             super.onDestroy();
+            mEngines.remove(this);
+            unregisterReceiver(mPowerSaveReceiver);
+            mHandler.removeCallbacks(mUpdateFrameDelay);
             destroyRenderer();
         }
 
+        void releaseIfHidden() {
+            if (!isVisible()) {
+                destroyRenderer();
+            }
+        }
+
+        @Override
+        public void onFrameDelayChanged(int frameDelay, int scrollFrameDelay) {
+            if (mRenderer != null) {
+                mRenderer.setFrameDelay(frameDelay, scrollFrameDelay);
+            }
+        }
+
+        private void updateFrameDelay() {
+            mHandler.removeCallbacks(mUpdateFrameDelay);
+            long next = mFrameScheduler.update(SystemClock.uptimeMillis());
+            if (next >= 0) {
+                mHandler.postDelayed(mUpdateFrameDelay, next);
+            }
+        }
+
         public void destroyRenderer() {
-            if (mWallpaperRS != null) {
-                mWallpaperRS.stop();
-                mWallpaperRS.uninit();
-                mWallpaperRS = null;
+            mHandler.removeCallbacks(mReleaseRenderer);
+            if (mRenderer == null && mRenderScript == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            if (mRenderer != null) {
+                mRenderer.stop();
+                mRenderer.uninit();
+                mRenderer = null;
             }
 
             if (mRenderScript != null) {
-                mRenderScript.setSurface(null, 0, 0);
+                setRenderScriptSurface(null, 0, 0);
                 mRenderScript.destroy();
                 mRenderScript = null;
             }
+            mStats.recordSince(FrameStats.TEARDOWN, start);
+        }
+
+        /**
+         * Points mRenderScript at holder unless it already draws there at that size,
+         * as every setSurface() rebuilds the EGL surface.
+         */
+        private void setRenderScriptSurface(SurfaceHolder holder, int width, int height) {
+            if (holder == mBoundSurfaceHolder && width == mBoundSurfaceWidth
+                    && height == mBoundSurfaceHeight) {
+                return;
+            }
+            mRenderScript.setSurface(holder, width, height);
+            mBoundSurfaceHolder = holder;
+            mBoundSurfaceWidth = width;
+            mBoundSurfaceHeight = height;
+        }
+
+        /**
+         * Brings the renderer back to hot, re-creating whatever a cold release threw
+         * away. A warm renderer only needs its surface and root script rebound. If
+         * the wallpaper is hidden, e.g. the surface changed behind the lock screen,
+         * the renderer is left warm instead.
+         */
+        private void resumeRenderer() {
+            long start = System.nanoTime();
+            mHandler.removeCallbacks(mReleaseRenderer);
+
+            if (!mSoftwareRenderer) {
+                if (mRenderScript == null) {
+                    RenderScriptGL.SurfaceConfig sc = new RenderScriptGL.SurfaceConfig();
+                    mRenderScript = new RenderScriptGL(PhaseBeamWallpaper.this, sc);
+                    mRenderScript.setPriority(RenderScript.Priority.NORMAL);
+                }
+                setRenderScriptSurface(mSurfaceHolder, mSurfaceWidth, mSurfaceHeight);
+            }
+
+            if (mRenderer == null) {
+                mRenderer = createRenderer();
+                mRenderer.setFrameDelay(mFrameScheduler.getFrameDelay(),
+                        mFrameScheduler.getScrollFrameDelay());
+                mRenderer.setOffset(mXOffset, mYOffset, mXPixelOffset, mYPixelOffset);
+            } else {
+                mRenderer.resize(mSurfaceWidth, mSurfaceHeight);
+            }
+
+            if (isVisible()) {
+                mRenderer.start();
+            } else {
+                // PhaseBeamRS.init() leaves the root script bound.
+                suspendRenderer();
+            }
+            mStats.recordSince(FrameStats.RESUME, start);
+        }
+
+        /**
+         * Creates the backend software_renderer selects for the current surface.
+         */
+        private PhaseBeamRenderer createRenderer() {
+            boolean lowPower = mPowerManager.isPowerSaveMode();
+            if (mSoftwareRenderer) {
+                PhaseBeamRenderer renderer = new SoftwareSurfaceRenderer(
+                        PhaseBeamWallpaper.this, mSurfaceHolder, mDensityDPI,
+                        mSurfaceWidth, mSurfaceHeight, mStats);
+                renderer.setLowPower(lowPower);
+                return renderer;
+            }
+            PhaseBeamRS renderer = new PhaseBeamRS(mStats);
+            renderer.setLowPower(lowPower);
+            renderer.init(PhaseBeamWallpaper.this, mDensityDPI, mRenderScript,
+                    getResources(), mSurfaceWidth, mSurfaceHeight);
+            return renderer;
+        }
+
+        /**
+         * Drops the renderer to warm and schedules the cold release.
+         */
+        private void suspendRenderer() {
+            if (mRenderer != null) {
+                mRenderer.stop();
+            }
+            mHandler.removeCallbacks(mReleaseRenderer);
+            if (mRenderer != null || mRenderScript != null) {
+                mHandler.postDelayed(mReleaseRenderer, mWarmTimeout);
+            }
         }
 
         @Override
         public void onSurfaceCreated(SurfaceHolder surfaceHolder) {
             super.onSurfaceCreated(surfaceHolder);
-
-            RenderScriptGL.SurfaceConfig sc = new RenderScriptGL.SurfaceConfig();
-            mRenderScript = new RenderScriptGL(PhaseBeamWallpaper.this, sc);
-            mRenderScript.setPriority(RenderScript.Priority.NORMAL);
+            mHandler.removeCallbacks(mReleaseRenderer);
         }
 
         @Override
         public void onSurfaceDestroyed(SurfaceHolder surfaceHolder) {
             super.onSurfaceDestroyed(surfaceHolder);
-            destroyRenderer();
+            suspendRenderer();
+            if (mRenderScript != null) {
+                setRenderScriptSurface(null, 0, 0);
+            }
+            mSurfaceHolder = null;
         }
 
         @Override
         public void onSurfaceChanged(SurfaceHolder surfaceHolder, int format, int width,
                 int height) {
             super.onSurfaceChanged(surfaceHolder, format, width, height);
+            mSurfaceHolder = surfaceHolder;
+            mSurfaceWidth = width;
+            mSurfaceHeight = height;
+            resumeRenderer();
+        }
 
-            if (mRenderScript != null) {
-                mRenderScript.setSurface(surfaceHolder, width, height);
+        @Override
+        public Bundle onCommand(String action, int x, int y, int z, Bundle extras,
+                boolean resultRequested) {
+            if (ACTION_GET_STATS.equals(action) && resultRequested) {
+                return getStats();
             }
+            return null;
+        }
 
-            if (mWallpaperRS == null) {
-                mWallpaperRS = new PhaseBeamRS();
-                mWallpaperRS.init(PhaseBeamWallpaper.this, mDensityDPI,
-                        mRenderScript, getResources(), width, height);
-                mWallpaperRS.start();
+        /**
+         * Returns count, mean, p50, p90, p99 and max in microseconds for every
+         * FrameStats channel, keyed as "<channel>.<value>".
+         */
+        private Bundle getStats() {
+            if (mRenderer != null) {
+                mRenderer.collectFrameTimings();
             }
-
-            mWallpaperRS.resize(width, height);
+            Bundle stats = new Bundle();
+            for (int channel = 0; channel < FrameStats.CHANNEL_COUNT; channel++) {
+                String name = FrameStats.getChannelName(channel);
+                stats.putLong(name + ".count", mStats.getCount(channel));
+                stats.putLong(name + ".mean", mStats.getMean(channel));
+                stats.putLong(name + ".p50", mStats.getPercentile(channel, 50));
+                stats.putLong(name + ".p90", mStats.getPercentile(channel, 90));
+                stats.putLong(name + ".p99", mStats.getPercentile(channel, 99));
+                stats.putLong(name + ".max", mStats.getMax(channel));
+            }
+            return stats;
         }
 
         @Override
-        public Bundle onCommand(String action, int x, int y, int z, Bundle extras,
-                boolean resultRequested) {
-            return null;
+        protected void dump(String prefix, FileDescriptor fd, PrintWriter out, String[] args) {
+            super.dump(prefix, fd, out, args);
+            if (mRenderer != null) {
+                mRenderer.collectFrameTimings();
+            }
+            out.print(prefix);
+            out.println("PhaseBeam frame stats:");
+            mStats.dump(prefix + "  ", out);
+            if (mRenderer != null) {
+                out.print(prefix);
+                out.println("PhaseBeam resources:");
+                mRenderer.dumpResources(prefix + "  ", out);
+            }
         }
 
         @Override
         public void onVisibilityChanged(boolean visible) {
             super.onVisibilityChanged(visible);
-            if (mWallpaperRS != null) {
-                if (visible) {
-                    mWallpaperRS.start();
-                } else {
-                    mWallpaperRS.stop();
+            mFrameScheduler.onVisibilityChanged(visible, SystemClock.uptimeMillis());
+            updateFrameDelay();
+            if (visible) {
+                if (mSurfaceHolder != null) {
+                    resumeRenderer();
                 }
+            } else {
+                suspendRenderer();
             }
         }
 
         @Override
         public void onOffsetsChanged(float xOffset, float yOffset, float xOffsetStep,
                 float yOffsetStep, int xPixelOffset, int yPixelOffset) {
-            mWallpaperRS.setOffset(xOffset, yOffset, xPixelOffset, yPixelOffset);
+            mXOffset = xOffset;
+            mYOffset = yOffset;
+            mXPixelOffset = xPixelOffset;
+            mYPixelOffset = yPixelOffset;
+            if (mRenderer != null) {
+                mRenderer.setOffset(xOffset, yOffset, xPixelOffset, yPixelOffset);
+            }
+            mFrameScheduler.onOffsetChanged(SystemClock.uptimeMillis());
+            updateFrameDelay();
         }
     }
 }
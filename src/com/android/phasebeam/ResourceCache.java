@@ -0,0 +1,168 @@
+package com.android.phasebeam;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * Process wide cache of the resources every PhaseBeamRS instance loads.
+ *
+ * Decoded bitmaps, shader sources and the background mesh do not depend on a
+ * RenderScript context and are shared by all engines; they are reference counted
+ * by acquire() and release() and dropped when no engine is left. Textures and
+ * programs belong to one context, and every context has a single engine, so they
+ * are built by and owned by that engine instead.
+ */
+class ResourceCache {
+    private static final String LOG_TAG = PhaseBeamRS.LOG_TAG;
+
+    private static final HashMap<Long, Bitmap> sBitmaps = new HashMap<Long, Bitmap>();
+    private static final HashMap<Integer, String> sShaders = new HashMap<Integer, String>();
+    private static BackgroundMesh sBackgroundMesh;
+    private static int sRefCount;
+
+    private ResourceCache() {
+    }
+
+    static synchronized void acquire() {
+        sRefCount++;
+    }
+
+    /**
+     * Drops one reference taken with acquire().
+     */
+    static synchronized void release() {
+        if (--sRefCount == 0) {
+            for (Bitmap bitmap : sBitmaps.values()) {
+                bitmap.recycle();
+            }
+            sBitmaps.clear();
+            sShaders.clear();
+            sBackgroundMesh = null;
+        }
+    }
+
+    /**
+     * Returns the drawable id decoded at 1/sampleSize of its size, see
+     * BitmapFactory.Options.inSampleSize.
+     */
+    static synchronized Bitmap getBitmap(Resources res, int id, int sampleSize) {
+        Long key = ((long) sampleSize << 32) | (id & 0xffffffffL);
+        Bitmap bitmap = sBitmaps.get(key);
+        if (bitmap == null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            bitmap = BitmapFactory.decodeResource(res, id, options);
+            sBitmaps.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    static synchronized String getShader(Resources res, int id) {
+        String shader = sShaders.get(id);
+        if (shader == null) {
+            shader = readRawResource(res, id);
+            sShaders.put(id, shader);
+        }
+        return shader;
+    }
+
+    static synchronized BackgroundMesh getBackgroundMesh(Resources res) {
+        if (sBackgroundMesh == null) {
+            try {
+                sBackgroundMesh = loadBackgroundMesh(res);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to load background mesh.", e);
+                return new BackgroundMesh(new float[0], 0);
+            }
+        }
+        return sBackgroundMesh;
+    }
+
+    /**
+     * Creates a mipmapped SpriteAtlas texture of the dot and beam drawables, decoded
+     * at 1/sampleSize of their size.
+     */
+    static synchronized Allocation createAtlas(RenderScript rs, Resources res, int dotId,
+            int beamId, int sampleSize) {
+        Bitmap atlas = SpriteAtlas.create(getBitmap(res, dotId, sampleSize),
+                getBitmap(res, beamId, sampleSize), sampleSize);
+        Allocation allocation = Allocation.createFromBitmap(rs, atlas,
+                Allocation.MipmapControl.MIPMAP_FULL, Allocation.USAGE_GRAPHICS_TEXTURE);
+        atlas.recycle();
+        return allocation;
+    }
+
+    /**
+     * Like createAtlas() for greyscale drawables, stored as a single channel L_8
+     * texture at a quarter of the memory of the RGBA one.
+     */
+    static synchronized Allocation createLuminanceAtlas(RenderScript rs, Resources res,
+            int dotId, int beamId, int sampleSize) {
+        int width = SpriteAtlas.WIDTH / sampleSize;
+        int height = SpriteAtlas.HEIGHT / sampleSize;
+        byte[] atlas = SpriteAtlas.createLuminance(getBitmap(res, dotId, sampleSize),
+                getBitmap(res, beamId, sampleSize), sampleSize);
+        Type.Builder builder = new Type.Builder(rs, Element.L_8(rs));
+        builder.setX(width);
+        builder.setY(height);
+        builder.setMipmaps(true);
+        Allocation allocation = Allocation.createTyped(rs, builder.create(),
+                Allocation.MipmapControl.MIPMAP_FULL,
+                Allocation.USAGE_GRAPHICS_TEXTURE | Allocation.USAGE_SCRIPT);
+        allocation.copy2DRangeFrom(0, 0, width, height, atlas);
+        allocation.generateMipmaps();
+        // The levels are generated in script memory, upload them to the texture.
+        allocation.syncAll(Allocation.USAGE_SCRIPT);
+        return allocation;
+    }
+
+    private static BackgroundMesh loadBackgroundMesh(Resources res) throws IOException {
+        // bgmesh.bin is stored uncompressed in the apk (see LOCAL_AAPT_FLAGS) so it can
+        // be mapped instead of read.
+        AssetFileDescriptor afd = res.openRawResourceFd(R.raw.bgmesh);
+        FileInputStream inputStream = afd.createInputStream();
+        try {
+            MappedByteBuffer buffer = inputStream.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength());
+            return BackgroundMesh.fromBinary(buffer);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static String readRawResource(Resources res, int id) {
+        InputStream inputStream = res.openRawResource(id);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } catch (IOException e) {
+            throw new Resources.NotFoundException("Unable to read resource " + id);
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to close resource " + id);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.android.phasebeam;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Owns the objects one engine creates so they are all released together, and
+ * keeps count of how many are alive and about how many bytes they hold.
+ *
+ * PhaseBeamRS adds every RenderScript object it creates, releases the ones it
+ * replaces right away and the rest in uninit(). Totals over all registries of the
+ * process are kept as well, so leaks show up across engine churn. Instances must
+ * only be used from one thread.
+ */
+public class ResourceRegistry<T> {
+    public interface Releaser<T> {
+        void release(T resource);
+    }
+
+    private static int sTotalLiveCount;
+    private static long sTotalLiveBytes;
+
+    private final Releaser<T> mReleaser;
+    private final IdentityHashMap<T, Long> mLive = new IdentityHashMap<T, Long>();
+    private long mLiveBytes;
+
+    public ResourceRegistry(Releaser<T> releaser) {
+        mReleaser = releaser;
+    }
+
+    /**
+     * Takes ownership of resource, which holds about bytes of memory, and returns it.
+     */
+    public <R extends T> R add(R resource, long bytes) {
+        if (mLive.put(resource, bytes) == null) {
+            mLiveBytes += bytes;
+            updateTotals(1, bytes);
+        }
+        return resource;
+    }
+
+    /**
+     * Releases resource now if it is owned by this registry.
+     */
+    public void release(T resource) {
+        Long bytes = mLive.remove(resource);
+        if (bytes != null) {
+            mLiveBytes -= bytes;
+            updateTotals(-1, -bytes);
+            mReleaser.release(resource);
+        }
+    }
+
+    public void releaseAll() {
+        ArrayList<T> resources = new ArrayList<T>(mLive.keySet());
+        for (T resource : resources) {
+            release(resource);
+        }
+    }
+
+    public int getLiveCount() {
+        return mLive.size();
+    }
+
+    public long getLiveBytes() {
+        return mLiveBytes;
+    }
+
+    public static synchronized int getTotalLiveCount() {
+        return sTotalLiveCount;
+    }
+
+    public static synchronized long getTotalLiveBytes() {
+        return sTotalLiveBytes;
+    }
+
+    private static synchronized void updateTotals(int count, long bytes) {
+        sTotalLiveCount += count;
+        sTotalLiveBytes += bytes;
+    }
+
+    public void dump(String prefix, PrintWriter out) {
+        out.print(prefix);
+        out.print("engine: count=");
+        out.print(getLiveCount());
+        out.print(" bytes=");
+        out.println(getLiveBytes());
+        out.print(prefix);
+        out.print("process: count=");
+        out.print(getTotalLiveCount());
+        out.print(" bytes=");
+        out.println(getTotalLiveBytes());
+    }
+}
@@ -0,0 +1,145 @@
+package com.android.phasebeam;
+
+import android.util.SparseArray;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * One ParticleSimulation per particle count, shared by every engine in the
+ * process.
+ *
+ * Engines acquire the simulation for their particle count and attach while
+ * started; only the offset and projection stay per engine. While a single engine
+ * is attached its script moves the particles itself, see particles.rs, starting
+ * from the positions here and writing them back when it detaches or a second
+ * engine attaches. Two or more engines are driven from one Choreographer callback
+ * that steps the simulation once per vsync and hands the positions to each of
+ * them, so the speed does not depend on how many engines draw or how often. Must
+ * only be used from the main thread.
+ */
+class SharedSimulation implements Choreographer.FrameCallback {
+    interface Listener {
+        /**
+         * The listener is the only one attached and moves the particles itself from
+         * the current positions of simulation until onSimulationReturned().
+         */
+        void onSimulationTaken(ParticleSimulation simulation);
+
+        /**
+         * Stores the positions the listener moved since onSimulationTaken() in
+         * simulation and stops moving them.
+         */
+        void onSimulationReturned(ParticleSimulation simulation);
+
+        /**
+         * Called once per vsync in which the shared simulation moved, frameTimeNanos
+         * being the Choreographer frame time.
+         */
+        void onSimulationStepped(ParticleSimulation simulation, long frameTimeNanos);
+    }
+
+    private static final SparseArray<SharedSimulation> sInstances =
+            new SparseArray<SharedSimulation>();
+    // Created on first use, large simulations are stepped on it.
+    private static ForkJoinPool sPool;
+
+    private final int mParticleCount;
+    private final ParticleSimulation mSimulation;
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+    private int mRefCount;
+    private boolean mFramePosted;
+    private long mLastTick;
+
+    static SharedSimulation acquire(int particleCount) {
+        SharedSimulation simulation = sInstances.get(particleCount);
+        if (simulation == null) {
+            simulation = new SharedSimulation(particleCount);
+            sInstances.put(particleCount, simulation);
+        }
+        simulation.mRefCount++;
+        return simulation;
+    }
+
+    private SharedSimulation(int particleCount) {
+        mParticleCount = particleCount;
+        mSimulation = new ParticleSimulation(particleCount, particleCount,
+                System.currentTimeMillis());
+        mSimulation.reset();
+        if (particleCount * 2 > ParticleSimulation.PARALLEL_CHUNK) {
+            if (sPool == null) {
+                sPool = new ForkJoinPool();
+            }
+            mSimulation.setPool(sPool);
+        }
+    }
+
+    void release() {
+        if (--mRefCount == 0) {
+            mListeners.clear();
+            setTicking(false);
+            sInstances.remove(mParticleCount);
+        }
+    }
+
+    ParticleSimulation getSimulation() {
+        return mSimulation;
+    }
+
+    void addListener(Listener listener) {
+        if (mListeners.contains(listener)) {
+            return;
+        }
+        if (mListeners.size() == 1) {
+            mListeners.get(0).onSimulationReturned(mSimulation);
+        }
+        mListeners.add(listener);
+        if (mListeners.size() == 1) {
+            listener.onSimulationTaken(mSimulation);
+        } else {
+            setTicking(true);
+        }
+    }
+
+    void removeListener(Listener listener) {
+        if (!mListeners.remove(listener)) {
+            return;
+        }
+        if (mListeners.isEmpty()) {
+            listener.onSimulationReturned(mSimulation);
+        } else if (mListeners.size() == 1) {
+            setTicking(false);
+            mListeners.get(0).onSimulationTaken(mSimulation);
+        }
+    }
+
+    private void setTicking(boolean ticking) {
+        if (ticking == mFramePosted) {
+            return;
+        }
+        mFramePosted = ticking;
+        if (ticking) {
+            // Time spent in a single engine's script is not caught up on.
+            mLastTick = 0;
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        int steps = 0;
+        if (mLastTick != 0) {
+            steps = mSimulation.advance((frameTimeNanos - mLastTick) / 1000000.0f);
+        }
+        mLastTick = frameTimeNanos;
+        if (steps > 0) {
+            for (int i = 0; i < mListeners.size(); i++) {
+                mListeners.get(i).onSimulationStepped(mSimulation, frameTimeNanos);
+            }
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+}
@@ -0,0 +1,412 @@
+package com.android.phasebeam;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * CPU implementation of the scene drawn by phasebeam.rs, rendering into an int[]
+ * ARGB framebuffer without a GPU.
+ *
+ * It reproduces the programs of the RenderScript path: the background triangles
+ * with per vertex color (bg_vs, bg_fs), the dot and beam point sprites (dot_vs,
+ * dot_fs), the recolor ramp and the SRC_ALPHA, ONE blending. The framebuffer is
+ * split in bands of TILE_SIZE rows which are rasterized in parallel; every pixel is
+ * owned by one band so the output does not depend on the thread count.
+ */
+public class SoftwareRenderer implements PhaseBeamRenderer {
+    private static final int TILE_SIZE = 64;
+
+    /**
+     * An ARGB sprite texture, sampled with bilinear filtering and clamped edges.
+     */
+    public static class Texture {
+        final int mWidth;
+        final int mHeight;
+        final int[] mPixels;
+
+        public Texture(int width, int height, int[] pixels) {
+            mWidth = width;
+            mHeight = height;
+            mPixels = pixels;
+        }
+    }
+
+    private final BackgroundMesh mMesh;
+    private final Texture mDotTexture;
+    private final Texture mBeamTexture;
+    private final ParticleSimulation mSimulation;
+    private final float mScaleSize;
+    private final ExecutorService mExecutor;
+    private final ArrayList<Callable<Void>> mTiles = new ArrayList<Callable<Void>>();
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mFramebuffer;
+
+    private float mXOffset = 0.5f;
+    private boolean mRunning;
+
+    private boolean mAdjustEnabled;
+    private final float[] mRamp = new float[HslRamp.SIZE * 3];
+
+    // Per frame projected geometry, shared read-only by the tiles.
+    private final float[] mVertexX;
+    private final float[] mVertexY;
+    private final float[] mVertexColors;
+    private final float[] mSpriteX;
+    private final float[] mSpriteY;
+    private final float[] mSpriteSize;
+    private final float[] mSpriteAlpha;
+
+    public SoftwareRenderer(int width, int height, float scaleSize, BackgroundMesh mesh,
+            Texture dot, Texture beam, ParticleSimulation simulation, int threads) {
+        mMesh = mesh;
+        mDotTexture = dot;
+        mBeamTexture = beam;
+        mSimulation = simulation;
+        mScaleSize = scaleSize;
+        mExecutor = Executors.newFixedThreadPool(threads);
+
+        int vertexCount = mesh.getVertexCount();
+        mVertexX = new float[vertexCount];
+        mVertexY = new float[vertexCount];
+        mVertexColors = new float[vertexCount * 4];
+        mMesh.computeColors(false, mVertexColors);
+
+        int spriteCount = simulation.getBeamCount() + simulation.getDotCount();
+        mSpriteX = new float[spriteCount];
+        mSpriteY = new float[spriteCount];
+        mSpriteSize = new float[spriteCount];
+        mSpriteAlpha = new float[spriteCount];
+
+        resize(width, height);
+    }
+
+    /**
+     * Sets the recolor parameters, like the adjust value of the script. When
+     * disabled the textures are expected to be the colored sprites, otherwise the
+     * grey ones.
+     */
+    public void setAdjust(boolean enabled, float hue, float saturation, float brightness) {
+        mAdjustEnabled = enabled;
+        if (enabled) {
+            HslRamp.fill(hue, saturation, brightness, mRamp);
+        }
+        mMesh.computeColors(enabled, mVertexColors);
+    }
+
+    /**
+     * Advances the simulation by elapsedMillis the way root() does and renders the
+     * frame.
+     */
+    public void drawFrame(int[] framebuffer, float elapsedMillis) {
+        mSimulation.advance(elapsedMillis);
+        render(framebuffer);
+    }
+
+    /**
+     * Renders the current state of the simulation into framebuffer, which holds
+     * width * height ARGB pixels.
+     */
+    public void render(int[] framebuffer) {
+        mFramebuffer = framebuffer;
+        project();
+        try {
+            for (Future<Void> future : mExecutor.invokeAll(mTiles)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        mFramebuffer = null;
+    }
+
+    private void project() {
+        // bg_vs
+        float bgOffset = -mXOffset / 2.0f / 3.5f;
+        for (int i = 0; i < mVertexX.length; i++) {
+            mVertexX[i] = toScreenX(mMesh.getX(i) + bgOffset);
+            mVertexY[i] = toScreenY(mMesh.getY(i));
+        }
+
+        // dot_vs, beams first as they are drawn first
+        float offsetX = mXOffset * 2.0f;
+        int beams = mSimulation.getBeamCount();
+        projectSprites(mSimulation.getBeamX(), mSimulation.getBeamY(),
+                mSimulation.getBeamZ(), beams, offsetX, 0);
+        projectSprites(mSimulation.getDotX(), mSimulation.getDotY(),
+                mSimulation.getDotZ(), mSimulation.getDotCount(), offsetX, beams);
+    }
+
+    private void projectSprites(float[] x, float[] y, float[] z, int count, float offsetX,
+            int first) {
+        for (int i = 0; i < count; i++) {
+            float pointSize = z[i] * 7.0f;
+            mSpriteX[first + i] = toScreenX(x[i] - offsetX * pointSize / 100.0f);
+            mSpriteY[first + i] = toScreenY(y[i]);
+            mSpriteSize[first + i] = pointSize * mScaleSize;
+            mSpriteAlpha[first + i] = 0.5f - pointSize / 1000.0f;
+        }
+    }
+
+    private float toScreenX(float x) {
+        return (x + 1.0f) * 0.5f * mWidth;
+    }
+
+    private float toScreenY(float y) {
+        return (1.0f - y) * 0.5f * mHeight;
+    }
+
+    private void renderTile(int top, int bottom) {
+        final int[] fb = mFramebuffer;
+        for (int i = top * mWidth; i < bottom * mWidth; i++) {
+            fb[i] = 0xff000000;
+        }
+
+        float[] rgb = new float[3];
+        for (int v = 0; v + 2 < mVertexX.length; v += 3) {
+            drawTriangle(v, top, bottom, rgb);
+        }
+
+        int beams = mSimulation.getBeamCount();
+        int count = beams + mSimulation.getDotCount();
+        for (int i = 0; i < count; i++) {
+            drawSprite(i, i < beams ? mBeamTexture : mDotTexture, top, bottom, rgb);
+        }
+    }
+
+    private void drawTriangle(int v0, int top, int bottom, float[] rgb) {
+        int v1 = v0 + 1;
+        int v2 = v0 + 2;
+        float area = edge(v0, v1, mVertexX[v2], mVertexY[v2]);
+        if (area == 0) {
+            return;
+        }
+        if (area < 0) {
+            int t = v1;
+            v1 = v2;
+            v2 = t;
+            area = -area;
+        }
+
+        float minY = Math.min(mVertexY[v0], Math.min(mVertexY[v1], mVertexY[v2]));
+        float maxY = Math.max(mVertexY[v0], Math.max(mVertexY[v1], mVertexY[v2]));
+        float minX = Math.min(mVertexX[v0], Math.min(mVertexX[v1], mVertexX[v2]));
+        float maxX = Math.max(mVertexX[v0], Math.max(mVertexX[v1], mVertexX[v2]));
+        int y0 = Math.max(top, (int) Math.floor(minY));
+        int y1 = Math.min(bottom, (int) Math.ceil(maxY) + 1);
+        int x0 = Math.max(0, (int) Math.floor(minX));
+        int x1 = Math.min(mWidth, (int) Math.ceil(maxX) + 1);
+
+        final int[] fb = mFramebuffer;
+        final float[] colors = mVertexColors;
+        for (int y = y0; y < y1; y++) {
+            float py = y + 0.5f;
+            for (int x = x0; x < x1; x++) {
+                float px = x + 0.5f;
+                float w0 = edge(v1, v2, px, py);
+                float w1 = edge(v2, v0, px, py);
+                float w2 = edge(v0, v1, px, py);
+                if (!covers(w0, v1, v2) || !covers(w1, v2, v0) || !covers(w2, v0, v1)) {
+                    continue;
+                }
+                w0 /= area;
+                w1 /= area;
+                w2 /= area;
+                int c0 = v0 * 4;
+                int c1 = v1 * 4;
+                int c2 = v2 * 4;
+                rgb[0] = w0 * colors[c0] + w1 * colors[c1] + w2 * colors[c2];
+                rgb[1] = w0 * colors[c0 + 1] + w1 * colors[c1 + 1] + w2 * colors[c2 + 1];
+                rgb[2] = w0 * colors[c0 + 2] + w1 * colors[c1 + 2] + w2 * colors[c2 + 2];
+                float alpha = w0 * colors[c0 + 3] + w1 * colors[c1 + 3] + w2 * colors[c2 + 3];
+                shade(rgb);
+                int index = y * mWidth + x;
+                fb[index] = blend(fb[index], rgb, alpha);
+            }
+        }
+    }
+
+    private float edge(int a, int b, float px, float py) {
+        return (mVertexX[b] - mVertexX[a]) * (py - mVertexY[a])
+                - (mVertexY[b] - mVertexY[a]) * (px - mVertexX[a]);
+    }
+
+    /**
+     * Inside test against edge a to b with a fill rule, so pixels on an edge shared
+     * by two triangles are only drawn once.
+     */
+    private boolean covers(float w, int a, int b) {
+        if (w != 0) {
+            return w > 0;
+        }
+        float dx = mVertexX[b] - mVertexX[a];
+        float dy = mVertexY[b] - mVertexY[a];
+        return dy > 0 || (dy == 0 && dx < 0);
+    }
+
+    private void drawSprite(int i, Texture texture, int top, int bottom, float[] rgb) {
+        float size = mSpriteSize[i];
+        float left = mSpriteX[i] - size / 2.0f;
+        float upper = mSpriteY[i] - size / 2.0f;
+        int y0 = Math.max(top, (int) Math.ceil(upper - 0.5f));
+        int y1 = Math.min(bottom, (int) Math.ceil(upper + size - 0.5f));
+        int x0 = Math.max(0, (int) Math.ceil(left - 0.5f));
+        int x1 = Math.min(mWidth, (int) Math.ceil(left + size - 0.5f));
+        if (y0 >= y1 || x0 >= x1) {
+            return;
+        }
+
+        final int[] fb = mFramebuffer;
+        final float alpha = mSpriteAlpha[i];
+        for (int y = y0; y < y1; y++) {
+            float v = (y + 0.5f - upper) / size;
+            for (int x = x0; x < x1; x++) {
+                float u = (x + 0.5f - left) / size;
+                sample(texture, u, v, rgb);
+                shade(rgb);
+                int index = y * mWidth + x;
+                fb[index] = blend(fb[index], rgb, alpha);
+            }
+        }
+    }
+
+    private static void sample(Texture texture, float u, float v, float[] rgb) {
+        float tx = u * texture.mWidth - 0.5f;
+        float ty = v * texture.mHeight - 0.5f;
+        int ix = (int) Math.floor(tx);
+        int iy = (int) Math.floor(ty);
+        float fx = tx - ix;
+        float fy = ty - iy;
+        int x0 = clamp(ix, texture.mWidth);
+        int x1 = clamp(ix + 1, texture.mWidth);
+        int y0 = clamp(iy, texture.mHeight) * texture.mWidth;
+        int y1 = clamp(iy + 1, texture.mHeight) * texture.mWidth;
+        int[] p = texture.mPixels;
+        for (int c = 0, shift = 16; c < 3; c++, shift -= 8) {
+            float top = channel(p[y0 + x0], shift) * (1 - fx) + channel(p[y0 + x1], shift) * fx;
+            float low = channel(p[y1 + x0], shift) * (1 - fx) + channel(p[y1 + x1], shift) * fx;
+            rgb[c] = top * (1 - fy) + low * fy;
+        }
+    }
+
+    private static int clamp(int i, int size) {
+        return i < 0 ? 0 : (i >= size ? size - 1 : i);
+    }
+
+    private static float channel(int argb, int shift) {
+        return ((argb >> shift) & 0xff) / 255.0f;
+    }
+
+    /**
+     * The recolor part of bg_fs and dot_fs: the input is greyscale when enabled and
+     * is looked up in the ramp with linear filtering.
+     */
+    private void shade(float[] rgb) {
+        if (mAdjustEnabled) {
+            float t = HslRamp.clamp01(rgb[0]) * (HslRamp.SIZE - 1);
+            int i = Math.min((int) t, HslRamp.SIZE - 2);
+            float f = t - i;
+            int a = i * 3;
+            int b = a + 3;
+            rgb[0] = mRamp[a] + (mRamp[b] - mRamp[a]) * f;
+            rgb[1] = mRamp[a + 1] + (mRamp[b + 1] - mRamp[a + 1]) * f;
+            rgb[2] = mRamp[a + 2] + (mRamp[b + 2] - mRamp[a + 2]) * f;
+        }
+    }
+
+    /**
+     * SRC_ALPHA, ONE blending of a fragment, clamped like a fixed point target.
+     */
+    private static int blend(int dst, float[] rgb, float alpha) {
+        alpha = HslRamp.clamp01(alpha);
+        int r = ((dst >> 16) & 0xff) + Math.round(HslRamp.clamp01(rgb[0]) * alpha * 255.0f);
+        int g = ((dst >> 8) & 0xff) + Math.round(HslRamp.clamp01(rgb[1]) * alpha * 255.0f);
+        int b = (dst & 0xff) + Math.round(HslRamp.clamp01(rgb[2]) * alpha * 255.0f);
+        return 0xff000000 | (Math.min(r, 255) << 16) | (Math.min(g, 255) << 8)
+                | Math.min(b, 255);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void start() {
+        mRunning = true;
+    }
+
+    @Override
+    public void stop() {
+        mRunning = false;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    @Override
+    public void setOffset(float xOffset, float yOffset, int xPixels, int yPixels) {
+        mXOffset = xOffset;
+    }
+
+    @Override
+    public void setFrameDelay(int frameDelay, int scrollFrameDelay) {
+        // Frames are drawn when the caller asks for them.
+    }
+
+    @Override
+    public void setLowPower(boolean lowPower) {
+        // The caller picks the frame rate, which is all ambient mode changes here.
+    }
+
+    @Override
+    public void collectFrameTimings() {
+        // Frames are drawn when the caller asks for them, so it times them too.
+    }
+
+    @Override
+    public void dumpResources(String prefix, PrintWriter out) {
+        out.print(prefix);
+        out.print(mWidth);
+        out.print("x");
+        out.print(mHeight);
+        out.print(" in ");
+        out.print(mTiles.size());
+        out.println(" bands");
+    }
+
+    @Override
+    public void resize(int w, int h) {
+        mWidth = w;
+        mHeight = h;
+        mTiles.clear();
+        for (int top = 0; top < h; top += TILE_SIZE) {
+            final int tileTop = top;
+            final int tileBottom = Math.min(h, top + TILE_SIZE);
+            mTiles.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    renderTile(tileTop, tileBottom);
+                    return null;
+                }
+            });
+        }
+    }
+
+    @Override
+    public void uninit() {
+        mExecutor.shutdown();
+    }
+}
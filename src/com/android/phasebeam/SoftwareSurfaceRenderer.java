@@ -0,0 +1,259 @@
+package com.android.phasebeam;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+
+import java.io.PrintWriter;
+
+/**
+ * Shows the frames of a SoftwareRenderer on a SurfaceHolder through a Canvas. This
+ * is the backend software_renderer in config.xml selects instead of PhaseBeamRS.
+ *
+ * Frames are rendered from a Choreographer callback at the delays the engine sets
+ * and timed into its FrameStats as they are drawn. Density and recolor follow the
+ * preferences like PhaseBeamRS; ambient mode only lowers the frame rate.
+ */
+class SoftwareSurfaceRenderer implements PhaseBeamRenderer, Choreographer.FrameCallback,
+        SharedPreferences.OnSharedPreferenceChangeListener, AdjustChannel.Listener {
+    private final Resources mRes;
+    private final SurfaceHolder mHolder;
+    private final SharedPreferences mSharedPref;
+    private final FrameStats mStats;
+    private final float mScaleSize;
+    private final int mSpriteSampleSize;
+    private final int mAmbientFrameDelay;
+
+    private SoftwareRenderer mRenderer;
+    private boolean mRecolor;
+    private float mHue;
+    private float mSaturation;
+    private float mBrightness;
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mFramebuffer;
+    private Bitmap mBitmap;
+
+    private float mXOffset = 0.5f;
+    private float mDrawnXOffset = 0.5f;
+    private int mFrameDelay = 66;
+    private int mScrollFrameDelay = 16;
+    private boolean mAmbient;
+    private boolean mLowPower;
+    private boolean mStarted;
+    private long mLastFrameNanos;
+
+    /**
+     * Loads the scene for a width x height surface; nothing is drawn until start().
+     */
+    SoftwareSurfaceRenderer(Context context, SurfaceHolder holder, int dpi, int width,
+            int height, FrameStats stats) {
+        long start = System.nanoTime();
+        mRes = context.getResources();
+        mHolder = holder;
+        mStats = stats;
+        mScaleSize = dpi / 240.0f;
+        mSpriteSampleSize = SpriteAtlas.getSampleSize(dpi);
+        mAmbientFrameDelay = 1000 / mRes.getInteger(R.integer.ambient_frame_rate);
+        mSharedPref = context.getSharedPreferences(PhaseBeamSelector.KEY_PREFS,
+                Context.MODE_PRIVATE);
+        mSharedPref.registerOnSharedPreferenceChangeListener(this);
+        AdjustChannel.getInstance().addListener(this);
+        ResourceCache.acquire();
+
+        setSize(width, height);
+        mRecolor = mSharedPref.getBoolean(PhaseBeamSelector.KEY_ENABLED,
+                mRes.getBoolean(R.bool.recolor_enabled));
+        createRenderer();
+        makeNewState();
+        mStats.recordSince(FrameStats.INIT, start);
+    }
+
+    /**
+     * Builds the SoftwareRenderer for the current density and recolor mode. Both its
+     * simulation and its sprites are fixed, so changing either builds a new one.
+     */
+    private void createRenderer() {
+        if (mRenderer != null) {
+            mRenderer.uninit();
+        }
+        int count = PhaseBeamRS.getParticleCount(mSharedPref, mRes);
+        ParticleSimulation simulation = new ParticleSimulation(count, count,
+                System.currentTimeMillis());
+        simulation.reset();
+        mRenderer = new SoftwareRenderer(mWidth, mHeight, mScaleSize,
+                ResourceCache.getBackgroundMesh(mRes),
+                loadTexture(mRecolor ? R.drawable.dot_grey : R.drawable.dot),
+                loadTexture(mRecolor ? R.drawable.beam_grey : R.drawable.beam),
+                simulation, Runtime.getRuntime().availableProcessors());
+        mRenderer.setOffset(mXOffset, 0, 0, 0);
+        mRenderer.setAdjust(mRecolor, mHue, mSaturation, mBrightness);
+    }
+
+    private SoftwareRenderer.Texture loadTexture(int id) {
+        Bitmap bitmap = ResourceCache.getBitmap(mRes, id, mSpriteSampleSize);
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        return new SoftwareRenderer.Texture(width, height, pixels);
+    }
+
+    private void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mFramebuffer = new int[width * height];
+        if (mBitmap != null) {
+            mBitmap.recycle();
+        }
+        mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private void makeNewState() {
+        mAmbient = mSharedPref.getBoolean(PhaseBeamSelector.KEY_AMBIENT,
+                mRes.getBoolean(R.bool.ambient_enabled));
+        applyAdjust(mSharedPref.getBoolean(PhaseBeamSelector.KEY_ENABLED,
+                    mRes.getBoolean(R.bool.recolor_enabled)),
+                mSharedPref.getFloat(PhaseBeamSelector.KEY_HUE,
+                    Float.valueOf(mRes.getString(R.string.hue))),
+                mSharedPref.getFloat(PhaseBeamSelector.KEY_SATURATION,
+                    Float.valueOf(mRes.getString(R.string.saturation))),
+                mSharedPref.getFloat(PhaseBeamSelector.KEY_BRIGHTNESS,
+                    Float.valueOf(mRes.getString(R.string.brightness))));
+    }
+
+    private void applyAdjust(boolean enabled, float hue, float saturation, float brightness) {
+        mHue = hue;
+        mSaturation = saturation;
+        mBrightness = brightness;
+        if (enabled != mRecolor) {
+            mRecolor = enabled;
+            createRenderer();
+        } else {
+            mRenderer.setAdjust(enabled, hue, saturation, brightness);
+        }
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (key.equals(PhaseBeamSelector.KEY_DENSITY)) {
+            createRenderer();
+        } else {
+            makeNewState();
+        }
+    }
+
+    @Override
+    public void onAdjustChanged(boolean enabled, float hue, float saturation,
+            float brightness) {
+        applyAdjust(enabled, hue, saturation, brightness);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        long start = System.nanoTime();
+        float elapsedMillis = 0.0f;
+        if (mLastFrameNanos != 0) {
+            mStats.record(FrameStats.FRAME_INTERVAL, (frameTimeNanos - mLastFrameNanos) / 1000);
+            elapsedMillis = (frameTimeNanos - mLastFrameNanos) / 1000000.0f;
+        }
+        mLastFrameNanos = frameTimeNanos;
+        boolean scrolling = mXOffset != mDrawnXOffset;
+        mDrawnXOffset = mXOffset;
+
+        mRenderer.drawFrame(mFramebuffer, elapsedMillis);
+        mBitmap.setPixels(mFramebuffer, 0, mWidth, 0, 0, mWidth, mHeight);
+        Canvas canvas = mHolder.lockCanvas();
+        if (canvas != null) {
+            canvas.drawBitmap(mBitmap, 0, 0, null);
+            mHolder.unlockCanvasAndPost(canvas);
+        }
+        mStats.recordSince(FrameStats.DRAW, start);
+
+        // Same choice of delay as the end of root() in phasebeam.rs.
+        int delay;
+        if (scrolling) {
+            delay = mScrollFrameDelay;
+        } else if (mAmbient || mLowPower) {
+            delay = Math.max(mFrameDelay, mAmbientFrameDelay);
+        } else {
+            delay = mFrameDelay;
+        }
+        Choreographer.getInstance().postFrameCallbackDelayed(this, delay);
+    }
+
+    @Override
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mLastFrameNanos = 0;
+        mRenderer.start();
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @Override
+    public void stop() {
+        mStarted = false;
+        mRenderer.stop();
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void setOffset(float xOffset, float yOffset, int xPixels, int yPixels) {
+        mXOffset = xOffset;
+        mRenderer.setOffset(xOffset, yOffset, xPixels, yPixels);
+    }
+
+    @Override
+    public void setFrameDelay(int frameDelay, int scrollFrameDelay) {
+        mFrameDelay = frameDelay;
+        mScrollFrameDelay = scrollFrameDelay;
+    }
+
+    @Override
+    public void resize(int w, int h) {
+        if (w == mWidth && h == mHeight) {
+            return;
+        }
+        long start = System.nanoTime();
+        setSize(w, h);
+        mRenderer.resize(w, h);
+        mStats.recordSince(FrameStats.RESIZE, start);
+    }
+
+    @Override
+    public void setLowPower(boolean lowPower) {
+        mLowPower = lowPower;
+    }
+
+    @Override
+    public void collectFrameTimings() {
+        // doFrame() records every frame as it is drawn.
+    }
+
+    @Override
+    public void dumpResources(String prefix, PrintWriter out) {
+        mRenderer.dumpResources(prefix, out);
+        out.print(prefix);
+        out.print("framebuffer and bitmap: ");
+        out.print((long) mWidth * mHeight * 8);
+        out.println(" bytes");
+    }
+
+    @Override
+    public void uninit() {
+        stop();
+        mSharedPref.unregisterOnSharedPreferenceChangeListener(this);
+        AdjustChannel.getInstance().removeListener(this);
+        mRenderer.uninit();
+        mBitmap.recycle();
+        ResourceCache.release();
+    }
+}
@@ -0,0 +1,84 @@
+package com.android.phasebeam;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.renderscript.Float4;
+import android.util.DisplayMetrics;
+
+/**
+ * Packs the beam and dot sprites into one texture so every particle can be drawn
+ * with a single draw call.
+ *
+ * The beam goes in the left half and the dot in the right half of a WIDTH x HEIGHT
+ * texture, divided by the sample size the sprites were decoded with. Both sprites
+ * fade to black at their borders and the rest of the atlas is black, so filtering
+ * and mipmapping across sprite edges add nothing under additive blending. Both
+ * dimensions stay powers of two as mipmapped textures need them to.
+ */
+class SpriteAtlas {
+    static final int WIDTH = 256;
+    static final int HEIGHT = 128;
+
+    private static final int BEAM_X = 0;
+    private static final int DOT_X = WIDTH / 2;
+
+    private SpriteAtlas() {
+    }
+
+    /**
+     * Returns the BitmapFactory sample size to decode the sprites with. Below hdpi
+     * dot_vs draws nearly all points at less than half the size of the source
+     * sprites, and the few larger ones are soft glows that magnify cleanly.
+     */
+    static int getSampleSize(int densityDpi) {
+        return densityDpi < DisplayMetrics.DENSITY_HIGH ? 2 : 1;
+    }
+
+    static Bitmap create(Bitmap dot, Bitmap beam, int sampleSize) {
+        Bitmap atlas = Bitmap.createBitmap(WIDTH / sampleSize, HEIGHT / sampleSize,
+                Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(atlas);
+        canvas.drawColor(Color.BLACK);
+        canvas.drawBitmap(beam, BEAM_X / sampleSize, 0, null);
+        canvas.drawBitmap(dot, DOT_X / sampleSize, 0, null);
+        return atlas;
+    }
+
+    /**
+     * Returns the atlas of greyscale sprites as one byte per texel, laid out like
+     * create(), for an L_8 allocation.
+     */
+    static byte[] createLuminance(Bitmap dot, Bitmap beam, int sampleSize) {
+        Bitmap atlas = create(dot, beam, sampleSize);
+        int width = atlas.getWidth();
+        int height = atlas.getHeight();
+        int[] pixels = new int[width * height];
+        atlas.getPixels(pixels, 0, width, 0, 0, width, height);
+        atlas.recycle();
+
+        byte[] luminance = new byte[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            // The sprites are grey, so any channel will do.
+            luminance[i] = (byte) Color.green(pixels[i]);
+        }
+        return luminance;
+    }
+
+    /**
+     * Returns the texture coordinates of the dot as offset x, y and size z, w.
+     */
+    static Float4 getDotRect(Bitmap dot, int sampleSize) {
+        return getRect(DOT_X, dot, sampleSize);
+    }
+
+    static Float4 getBeamRect(Bitmap beam, int sampleSize) {
+        return getRect(BEAM_X, beam, sampleSize);
+    }
+
+    private static Float4 getRect(int x, Bitmap sprite, int sampleSize) {
+        return new Float4((float) x / WIDTH, 0.0f,
+                (float) sprite.getWidth() * sampleSize / WIDTH,
+                (float) sprite.getHeight() * sampleSize / HEIGHT);
+    }
+}
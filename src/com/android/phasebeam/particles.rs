@@ -0,0 +1,62 @@
+#pragma version(1)
+
+#pragma rs java_package_name(com.android.phasebeam)
+
+#include "particle.rsh"
+
+// Moves one particle per invocation, launched by root() in phasebeam.rs with
+// rsForEach() so the runtime can spread the particles across cores. Mirrors
+// ParticleSimulation.stepBeams() and stepDots(), keep both in sync.
+
+static const float zxParticleSpeed = 0.0000780;
+static const float zxBeamSpeed = 0.00005;
+static const float yzParticleSpeed = 0.00011;
+static const float yzBeamSpeed = 0.000080;
+
+// rsRand() shares one state between all threads, respawns hash the particle
+// index and step instead.
+static float hashRand(uint32_t x, uint32_t seed, float min, float max) {
+    uint32_t h = x * 0x9e3779b9 ^ seed * 0x85ebca6b;
+    h ^= h >> 16;
+    h *= 0x7feb352d;
+    h ^= h >> 15;
+    h *= 0x846ca68b;
+    h ^= h >> 16;
+    return min + (h >> 8) * (1.0f / 16777216.0f) * (max - min);
+}
+
+void root(const Particle_t *in, Particle_t *out, const StepParams_t *params, uint32_t x) {
+    float3 position = in->position;
+    float speedbump = position.z >= farZ ? params->speedbump : params->farSpeedbump;
+    out->sprite = in->sprite;
+    if (speedbump == 0) {
+        out->position = position;
+        return;
+    }
+
+    if (x < params->numBeams) {
+        if (position.x / position.z > 0.5) {
+            position.x = -1.0;
+        }
+        if (position.y > 1.15) {
+            position.y = -1.15;
+            position.x = hashRand(x, params->seed, -1.25f, 1.25f);
+        } else {
+            position.y += yzBeamSpeed * position.z * speedbump;
+        }
+        position.x += zxBeamSpeed * position.z * speedbump;
+    } else {
+        if (position.x / position.z > 0.5) {
+            position.x = -1.0;
+        }
+        if (position.y > 1.25) {
+            position.y = -1.25;
+            position.x = hashRand(x, params->seed, 0.0f, 3.0f);
+        } else {
+            position.y += yzParticleSpeed * position.z * speedbump;
+        }
+        position.x += zxParticleSpeed * position.z * speedbump;
+    }
+
+    out->position = position;
+}
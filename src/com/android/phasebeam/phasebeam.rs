@@ -3,9 +3,10 @@
 #pragma rs java_package_name(com.android.phasebeam)
 
 #include "rs_graphics.rsh"
+#include "particle.rsh"
 
-rs_allocation textureDot;
-rs_allocation textureBeam;
+// Sprite atlas holding both the dot and the beam, see SpriteAtlas.
+rs_allocation textureParticles;
 
 rs_program_vertex vertBg;
 rs_program_fragment fragBg;
@@ -13,41 +14,69 @@ rs_program_fragment fragBg;
 rs_program_vertex vertDots;
 rs_program_fragment fragDots;
 
-static int numBeamParticles;
+// With cacheBackground the background is rendered into bgTarget only when the
+// offset, adjust or size changed and composited from there with the blit
+// programs. Ambient mode always caches, at reduced resolution, and draws only a
+// quarter of the particles.
+bool cacheBackground = false;
+bool ambient = false;
+int ambientFrameDelay = 250;
+rs_allocation bgTarget;
+rs_program_vertex vertBlit;
+rs_program_fragment fragBlit;
+rs_program_store storeBlend;
+rs_program_store storeOpaque;
+static bool bgTargetValid;
+
+// particles holds numBeamParticles beams followed by the dots. Only the first
+// drawnBeams beams and the drawnDots after them are drawn, set by PhaseBeamRS
+// after culling.
+int numBeamParticles;
 static int numDotParticles;
+int drawnBeams;
+int drawnDots;
 static int numVertColors;
 
-typedef struct __attribute__((packed, aligned(4))) Particle {
-    float3 position;
-    float offsetX;
-    float3 adjust;
-} Particle_t;
-
+// Values shared by every vertex, the offsets and adjust are written by root().
 typedef struct VpConsts {
     rs_matrix4x4 MVP;
     float scaleSize;
+    float bgOffsetX;
+    float offsetX;
+    float3 adjust;
+    // Atlas texture coordinates of each sprite as offset.xy, size.zw.
+    float4 dotSprite;
+    float4 beamSprite;
 } VpConsts_t;
 VpConsts_t *vpConstants;
 
 typedef struct VertexColor_s {
     float3 position;
-    float offsetX;
     float4 color;
     float4 realColor;
-    float3 adjust;
 } VertexColor;
 
 VertexColor* vertexColors;
-Particle_t *dotParticles;
-Particle_t *beamParticles;
-rs_mesh dotMesh;
-rs_mesh beamMesh;
+Particle_t *particles;
+rs_mesh particleMesh;
 rs_mesh gBackgroundMesh;
 
 float3 adjust = { -1.0, 1.0, 1.0 };
 float3 oldAdjust = { -1.0, 1.0, 1.0 };
 float densityDPI;
 float xOffset = 0.5;
+// Delays in ms between frames, set from FrameScheduler.
+int frameDelay = 66;
+int scrollFrameDelay = 16;
+// Whether root() moves the particles itself, in parallel with particleScript, see
+// particles.rs. PhaseBeamRS clears it while SharedSimulation steps them in Java for
+// several engines and uploads the positions instead.
+bool simulate = true;
+rs_script particleScript;
+// Filled by saveParticles() with the x, y and z of every particle, see
+// PhaseBeamRS.onSimulationReturned().
+float *particleCopy;
+static StepParams_t stepParams;
 
 static float screenWidth;
 static float screenHeight;
@@ -56,81 +85,152 @@ static float quarterScreenWidth;
 static float quarterScreenHeight;
 static float halfScreenHeight;
 
+// Ring of per frame timings read back by PhaseBeamRS.collectFrameTimings(), each
+// entry being frame number, interval, background, particles and draw time in us.
+int *frameTimings;
+static int numFrameTimings;
+static int frameCount;
+static int64_t lastFrameStart;
+
 static float newOffset = 0.5;
 static float oldOffset = 0.5;
 
-static const float zxParticleSpeed = 0.0000780;
-static const float zxBeamSpeed = 0.00005;
-static const float yzParticleSpeed = 0.00011;
-static const float yzBeamSpeed = 0.000080;
-
-void positionParticles() {
-    screenWidth = rsgGetWidth();
-    screenHeight = rsgGetHeight();
+// Fixed simulation step, see ParticleSimulation.advance().
+static const float stepMillis = 16.5;
+static const float stepSpeedbump = 0.25;
+static const int maxSteps = 16;
+static int64_t lastStepTime;
+static float stepAccumulator;
+// Distance owed to the far particles, see ParticleSimulation.step().
+static float farAccumulator;
+
+// Called from PhaseBeamRS.resize(); particle positions are in normalized device
+// coordinates, so they follow the new aspect ratio without being touched.
+void setScreenSize(float width, float height) {
+    screenWidth = width;
+    screenHeight = height;
     halfScreenWidth = screenWidth/2.0f;
     halfScreenHeight = screenHeight/2.0f;
     quarterScreenWidth = screenWidth/4.0f;
     quarterScreenHeight = screenHeight/4.0f;
-    Particle_t* particle = dotParticles;
-    numDotParticles = rsAllocationGetDimX(rsGetAllocation(dotParticles));
+}
+
+void positionParticles() {
+    setScreenSize(rsgGetWidth(), rsgGetHeight());
+    numDotParticles = rsAllocationGetDimX(rsGetAllocation(particles)) - numBeamParticles;
     numVertColors = rsAllocationGetDimX(rsGetAllocation(vertexColors));
-    for(int i=0; i<numDotParticles; i++) {
-        particle->position.x = rsRand(0.0f, 3.0f);
-        particle->position.y = rsRand(-1.25f, 1.25f);
-
-        float z;
-        if (i < 3) {
-            z = 14.0f;
-        } else if(i < 7) {
-            z = 25.0f;
-        } else if(i < 4) {
-            z = rsRand(10.f, 20.f);
-        } else if(i == 10) {
-            z = 24.0f;
-            particle->position.x = 1.0;
-        } else {
-            z = rsRand(6.0f, 14.0f);
-        }
-        particle->position.z = z;
-        particle->offsetX = 0;
-        particle->adjust = adjust;
+    numFrameTimings = rsAllocationGetDimX(rsGetAllocation(frameTimings)) / 5;
+    // The initial layout is written from Java, see ParticleSimulation.reset().
+}
 
-        particle++;
+void saveParticles() {
+    int count = rsAllocationGetDimX(rsGetAllocation(particles));
+    float *out = particleCopy;
+    for (int i = 0; i < count; i++) {
+        out[0] = particles[i].position.x;
+        out[1] = particles[i].position.y;
+        out[2] = particles[i].position.z;
+        out += 3;
     }
+}
 
-    numBeamParticles = rsAllocationGetDimX(rsGetAllocation(beamParticles));
-    for(int i=0; i<numBeamParticles; i++) {
-        float z;
-        if(i < 20) {
-            z = rsRand(4.0f, 10.0f)/2.0f;
-        } else {
-            z = rsRand(4.0f, 35.0f)/2.0f;
-        }
-        beamParticles->position.x = rsRand(-1.25f, 1.25f);
-        beamParticles->position.y = rsRand(-1.05f, 1.205f);
+// Called when bgTarget was replaced or no longer matches what root() would draw.
+void invalidateBackground() {
+    bgTargetValid = false;
+}
+
+static void drawBackground(bool scrolling) {
+    rsgBindProgramVertex(vertBg);
+    rsgBindProgramFragment(fragBg);
+
+    if (!(cacheBackground || ambient) || scrolling) {
+        // Moving backgrounds would need the target redrawn every frame anyway.
+        rsgDrawMesh(gBackgroundMesh);
+        bgTargetValid = false;
+        return;
+    }
 
-        beamParticles->position.z = z;
-        beamParticles->offsetX = 0;
-        beamParticles->adjust = adjust;
-        beamParticles++;
+    if (!bgTargetValid) {
+        rsgBindColorTarget(bgTarget, 0);
+        rsgClearColor(0.0f, 0.f, 0.f, 1.0f);
+        rsgDrawMesh(gBackgroundMesh);
+        rsgClearAllRenderTargets();
+        bgTargetValid = true;
     }
+
+    // Window coordinates are y down while the target's rows start at the bottom.
+    float width = rsgGetWidth();
+    float height = rsgGetHeight();
+    rsgBindProgramVertex(vertBlit);
+    rsgBindProgramFragment(fragBlit);
+    rsgBindProgramStore(storeOpaque);
+    rsgBindTexture(fragBlit, 0, bgTarget);
+    rsgDrawQuadTexCoords(0, 0, 0, 0, 1,
+            0, height, 0, 0, 0,
+            width, height, 0, 1, 0,
+            width, 0, 0, 1, 1);
+    rsgBindProgramStore(storeBlend);
+}
+
+static void drawParticles(int start, int count) {
+    if (count > 0) {
+        rsgDrawMesh(particleMesh, 0, start, count);
+    }
+}
+
+static void recordFrameTiming(int64_t frameStart, int64_t background,
+        int64_t particles, int64_t draw) {
+    // Frames drawn between bindRootScript() and positionParticles() go unrecorded.
+    if (numFrameTimings == 0) {
+        return;
+    }
+    int *timing = frameTimings + (frameCount % numFrameTimings) * 5;
+    timing[0] = ++frameCount;
+    timing[1] = lastFrameStart != 0 ? (frameStart - lastFrameStart) / 1000 : 0;
+    timing[2] = background / 1000;
+    timing[3] = particles / 1000;
+    timing[4] = draw / 1000;
+    lastFrameStart = frameStart;
+}
+
+// Advances the fixed step accumulator by the time since the last frame and
+// returns how far the particles move this frame, in units of a 66 ms frame.
+static float advanceClock(int64_t now) {
+    float elapsed = lastStepTime != 0 ? (now - lastStepTime) / 1000000.0f : stepMillis;
+    lastStepTime = now;
+    stepAccumulator += max(elapsed, 0.0f);
+    int steps = (int) (stepAccumulator / stepMillis);
+    stepAccumulator -= steps * stepMillis;
+    return min(steps, maxSteps) * stepSpeedbump;
 }
 
+// The clock below is mirrored by ParticleSimulation.advance(), keep both in sync.
 int root() {
-    float speedbump;
+    int64_t frameStart = rsUptimeNanos();
+    float speedbump = advanceClock(frameStart);
 
     newOffset = xOffset*2;
-    speedbump = newOffset != oldOffset ? 0.25 : 1.0;
+    bool scrolling = newOffset != oldOffset;
     rsgClearColor(0.0f, 0.f, 0.f,1.0f);
 
-    if(newOffset != oldOffset
-            || oldAdjust.x != adjust.x
+    bool adjustChanged = oldAdjust.x != adjust.x
             || oldAdjust.y != adjust.y
-            || oldAdjust.z != adjust.z) {
+            || oldAdjust.z != adjust.z;
+
+    if(scrolling || adjustChanged) {
+        // Offsets and adjust are the same for every vertex and are read by the
+        // vertex programs as constants.
+        vpConstants->bgOffsetX = -xOffset/2.0;
+        vpConstants->offsetX = newOffset;
+        vpConstants->adjust = adjust;
+        rsgAllocationSyncAll(rsGetAllocation(vpConstants));
+    }
+
+    if(adjustChanged) {
+        bgTargetValid = false;
         VertexColor* vert = vertexColors;
         bool useAdjust = adjust.x >= 0;
         for(int i=0; i<numVertColors; i++) {
-            vert->offsetX = -xOffset/2.0;
             vert->realColor = vert->color;
             if (useAdjust) {
                 float grey = 0.3 * vert->color.x + 0.59 * vert->color.y + 0.11 * vert->color.z;
@@ -138,65 +238,55 @@ int root() {
                 vert->realColor.y = grey;
                 vert->realColor.z = grey;
             }
-            vert->adjust = adjust;
             vert++;
         }
     }
 
-    rsgBindProgramVertex(vertBg);
-    rsgBindProgramFragment(fragBg);
+    int64_t backgroundDone = rsUptimeNanos();
 
-    rsgDrawMesh(gBackgroundMesh);
+    drawBackground(scrolling);
 
-    Particle_t* beam = beamParticles;
-    Particle_t* particle = dotParticles;
+    int64_t particlesStart = rsUptimeNanos();
 
-    for (int i=0; i<numBeamParticles; i++) {
-        if(beam->position.x/beam->position.z > 0.5) {
-            beam->position.x = -1.0;
-        }
-        if(beam->position.y > 1.15) {
-            beam->position.y = -1.15;
-            beam->position.x = rsRand(-1.25f, 1.25f);
-        } else {
-            beam->position.y += yzBeamSpeed * beam->position.z * speedbump;
+    // Otherwise SharedSimulation uploads the positions from Java.
+    if (simulate && speedbump > 0) {
+        stepParams.speedbump = speedbump;
+        farAccumulator += speedbump;
+        stepParams.farSpeedbump = 0;
+        if (farAccumulator >= farStepSpeedbump) {
+            stepParams.farSpeedbump = farAccumulator;
+            farAccumulator = 0;
         }
-        beam->position.x += zxBeamSpeed * beam->position.z * speedbump;
-        beam->offsetX = newOffset;
-        beam->adjust = adjust;
-        beam++;
+        stepParams.seed = frameCount;
+        stepParams.numBeams = numBeamParticles;
+        rs_allocation allocation = rsGetAllocation(particles);
+        rsForEach(particleScript, allocation, allocation, &stepParams, sizeof(stepParams));
     }
 
-    for(int i=0; i<numDotParticles; i++) {
-        if(particle->position.x/particle->position.z > 0.5) {
-            particle->position.x = -1.0;
-        }
-
-        if(particle->position.y > 1.25) {
-            particle->position.y = -1.25;
-            particle->position.x = rsRand(0.0f, 3.0f);
-
-        } else {
-            particle->position.y += yzParticleSpeed * particle->position.z * speedbump;
-        }
-
-        particle->offsetX = newOffset;
-        particle->position.x += zxParticleSpeed * particle->position.z * speedbump;
-        particle->adjust = adjust;
-        particle++;
-    }
+    int64_t particlesDone = rsUptimeNanos();
 
     rsgBindProgramVertex(vertDots);
     rsgBindProgramFragment(fragDots);
 
-    rsgBindTexture(fragDots, 0, textureBeam);
-    rsgDrawMesh(beamMesh);
-
-    rsgBindTexture(fragDots, 0, textureDot);
-    rsgDrawMesh(dotMesh);
+    rsgBindTexture(fragDots, 0, textureParticles);
+    if (ambient) {
+        // Blending is additive, so the subset can be drawn in any order.
+        drawParticles(0, (drawnBeams + 3) / 4);
+        drawParticles(drawnBeams, (drawnDots + 3) / 4);
+    } else {
+        drawParticles(0, drawnBeams + drawnDots);
+    }
 
     oldOffset = newOffset;
     oldAdjust = adjust;
 
-    return 66 * speedbump;
+    int64_t frameEnd = rsUptimeNanos();
+    recordFrameTiming(frameStart, backgroundDone - frameStart,
+            particlesDone - particlesStart,
+            (particlesStart - backgroundDone) + (frameEnd - particlesDone));
+
+    if (scrolling) {
+        return scrollFrameDelay;
+    }
+    return ambient ? max(frameDelay, ambientFrameDelay) : frameDelay;
 }
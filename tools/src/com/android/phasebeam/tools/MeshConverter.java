@@ -0,0 +1,37 @@
+package com.android.phasebeam.tools;
+
+import com.android.phasebeam.BackgroundMesh;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Converts the plotted background mesh csv into the binary format read at runtime.
+ */
+public class MeshConverter {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: MeshConverter <bgmesh.csv> <bgmesh.bin>");
+            System.exit(1);
+        }
+
+        BackgroundMesh mesh;
+        InputStream in = new FileInputStream(args[0]);
+        try {
+            mesh = BackgroundMesh.fromCsv(in);
+        } finally {
+            in.close();
+        }
+
+        OutputStream out = new FileOutputStream(args[1]);
+        try {
+            mesh.writeBinary(out);
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote " + mesh.getVertexCount() + " vertices to " + args[1]);
+    }
+}